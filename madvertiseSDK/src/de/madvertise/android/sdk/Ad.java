@@ -15,41 +15,29 @@
  */
 package de.madvertise.android.sdk;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
- * Defines an ad from a JSON object, that contains all necessary information which is provided 
+ * Defines an ad from the response of the ad server, that contains all necessary information which is provided 
  * by the madvertise ad server. Icons and banners are synchronously fetched from the madvertise server and 
- * stored on the device. Click action is handled asynchronously.
+ * stored on the device in the {@link MadCreativeCache}. Click action is handled asynchronously.
  */
 public class Ad {
 
-    private final String CLICK_URL_CODE = "click_url";
-
-    private final String BANNER_URL_CODE = "banner_url";
-
-    private final String TEXT_CODE = "text";
-
-    private final String HAS_BANNER_CODE = "has_banner";
-
     private String clickURL;
 
     private String bannerURL;
@@ -60,58 +48,98 @@ public class Ad {
 
     private boolean hasBanner;
 
-    private JSONArray jsonNames;
+    private Bitmap bannerBitmap;
 
-    private JSONArray jsonValues;
+    // encoded banner, only kept for animated gifs
+    private byte[] gifData;
 
-    private byte[] imageByteArray;
+    // version of the downloaded or cached creative
+    private String bannerValidator;
+    private long bannerExpires;
 
     private Context context;
 
+    private final boolean cacheOnly;
+
+    private final long creationTime = SystemClock.elapsedRealtime();
+
     /**
      * Constructor, blocking due to http request, should be called in a thread pool, a request queue, 
      * a network thread
      * 
      * @param context 
      *      the applications context
-     * @param json 
-     *      json object containing all ad information
+     * @param adData 
+     *      fields of the ad from the ad server response
+     * @param targetWidth 
+     *      width of the ad slot, the banner is downsampled to, 0 if unknown
+     * @param targetHeight 
+     *      height of the ad slot, the banner is downsampled to, 0 if unknown
+     */
+    protected Ad(Context context, MadAdParser.AdData adData, int targetWidth, int targetHeight) {
+        this(context, adData, targetWidth, targetHeight, false);
+    }
+
+    /**
+     * Constructor, blocking due to file access and, unless cacheOnly is set, due to http request
+     * 
+     * @param context 
+     *      the applications context
+     * @param adData 
+     *      fields of the ad from the ad server response or the {@link MadAdInventory}
+     * @param targetWidth 
+     *      width of the ad slot, the banner is downsampled to, 0 if unknown
+     * @param targetHeight 
+     *      height of the ad slot, the banner is downsampled to, 0 if unknown
+     * @param cacheOnly 
+     *      true to take the banner from the creative cache only, even if it is stale
      */
-    protected Ad(Context context, JSONObject json) {
+    protected Ad(Context context, MadAdParser.AdData adData, int targetWidth, int targetHeight, boolean cacheOnly) {
         this.context = context;
+        this.cacheOnly = cacheOnly;
 
         MadUtil.logMessage(null, Log.DEBUG, "Creating ad");
 
-        // init json arrays and print all keys / values
-        jsonNames = json.names();
-        try {
-            jsonValues = json.toJSONArray(jsonNames);
-
-            if (MadUtil.PRINT_LOG) {
-                for (int i = 0; i < jsonNames.length(); i++) {
-                    MadUtil.logMessage(null, Log.DEBUG, "Key => " + jsonNames.getString(i) + " Value => "
-                            + jsonValues.getString(i));
-                }
-            }
-
-            clickURL = json.isNull(CLICK_URL_CODE) ? "" : json.getString(CLICK_URL_CODE);
-            bannerURL = json.isNull(BANNER_URL_CODE) ? "" : json.getString(BANNER_URL_CODE);
-            text = json.isNull(TEXT_CODE) ? "" : json.getString(TEXT_CODE);
-            hasBannerLink = Boolean.parseBoolean(json.isNull(HAS_BANNER_CODE) ? "true" : json
-                    .getString(HAS_BANNER_CODE));
+        clickURL = adData.clickURL;
+        bannerURL = adData.bannerURL;
+        text = adData.text;
+        hasBannerLink = adData.hasBannerLink;
 
-        } catch (JSONException e) {
-            MadUtil.logMessage(null, Log.DEBUG, "Error in json string");
-            e.printStackTrace();
-        }
+        if (MadUtil.isLoggable(Log.DEBUG)) MadUtil.logMessage(null, Log.DEBUG, "click_url => " + clickURL + " banner_url => " + bannerURL
+                + " text => " + text + " has_banner => " + hasBannerLink);
 
         if (hasBannerLink) {
-            imageByteArray = downloadImage(bannerURL);
+            bannerBitmap = MadBitmapCache.get(bannerURL, targetWidth, targetHeight);
+            if (bannerBitmap != null) {
+                MadUtil.logMessage(null, Log.DEBUG, "Using decoded banner from memory cache");
+            } else {
+                long start = System.nanoTime();
+                byte[] imageByteArray = downloadImage(bannerURL, cacheOnly);
+                MadLatencyTracker.record(MadView.LatencyPhase.BANNER_DOWNLOAD, start);
+                boolean animated = imageByteArray != null && MadGifDecoder.isAnimated(imageByteArray);
+                if (imageByteArray != null && !animated) {
+                    // the creative was revalidated and did not change since it was decoded
+                    bannerBitmap = MadBitmapCache.get(bannerURL, targetWidth, targetHeight, bannerValidator);
+                }
+                if (imageByteArray != null && bannerBitmap == null) {
+                    // decode here, so the ui thread only receives a ready bitmap
+                    start = System.nanoTime();
+                    bannerBitmap = MadUtil.decodeSampledBitmap(imageByteArray, targetWidth, targetHeight);
+                    MadLatencyTracker.record(MadView.LatencyPhase.DECODE, start);
+                }
+                if (bannerBitmap != null && animated) {
+                    // the frames are decoded by the view, the bitmap is the first frame
+                    gifData = imageByteArray;
+                } else if (bannerBitmap != null) {
+                    // only static banners are cached, so a cached banner is never animated
+                    MadBitmapCache.put(bannerURL, targetWidth, targetHeight, bannerBitmap, bannerValidator, bannerExpires);
+                }
+            }
         } else {
             MadUtil.logMessage(null, Log.DEBUG, "No banner link in json found");
         }
 
-        if (imageByteArray != null) {
+        if (bannerBitmap != null) {
             hasBanner = true;
         } else {
             hasBanner = false;
@@ -119,19 +147,20 @@ public class Ad {
     }
 
     /**
-     * Download an image from given URL and return it as byte array.
+     * Download an image from given URL and return it as byte array. Fresh creatives are taken from
+     * the creative cache, stale ones are revalidated with a conditional request. A stale creative
+     * is still used, if the request fails.
      * 
      * @param imageURLString 
      *      url of the banner
+     * @param cacheOnly 
+     *      true to use a cached creative without any request, even if it is stale
      * @return 
      *      image as byte array
      */
-    private byte[] downloadImage(String imageURLString) {
+    private byte[] downloadImage(String imageURLString, boolean cacheOnly) {
 
         InputStream inputStream = null;
-        ByteArrayOutputStream byteArrayOutputStream = null;
-        HttpClient client = new DefaultHttpClient();
-        HttpGet getRequest = new HttpGet(imageURLString);
         HttpResponse response = null;
         byte[] returnByteArray = null;
 
@@ -139,38 +168,73 @@ public class Ad {
             return returnByteArray;
         }
 
-        HttpParams clientParams = client.getParams();
-        HttpConnectionParams.setConnectionTimeout(clientParams,
-                MadUtil.CONNECTION_TIMEOUT.intValue());
-        HttpConnectionParams.setSoTimeout(clientParams, MadUtil.CONNECTION_TIMEOUT.intValue());
+        MadCreativeCache cache = MadCreativeCache.getInstance(context);
+        MadCreativeCache.CachedCreative cachedCreative = cache.get(imageURLString);
+        if (cachedCreative != null && (cacheOnly || cachedCreative.isFresh())) {
+            MadUtil.logMessage(null, Log.DEBUG, "Using cached banner: ", imageURLString);
+            cache.hit(cachedCreative);
+            setBannerVersion(cachedCreative.eTag, cachedCreative.lastModified, cachedCreative.expires);
+            return cachedCreative.data;
+        }
+        if (cacheOnly) {
+            MadUtil.logMessage(null, Log.DEBUG, "Banner is not cached: ", imageURLString);
+            return null;
+        }
+
+        HttpClient client = MadHttpTransport.getHttpClient();
+        HttpGet getRequest = new HttpGet(imageURLString);
+        new MadRequestBudget().applyTo(getRequest.getParams());
+        if (cachedCreative != null) {
+            if (cachedCreative.eTag != null) {
+                getRequest.addHeader("If-None-Match", cachedCreative.eTag);
+            }
+            if (cachedCreative.lastModified != null) {
+                getRequest.addHeader("If-Modified-Since", cachedCreative.lastModified);
+            }
+        }
 
-        MadUtil.logMessage(null, Log.DEBUG, "Try to download banner: " + imageURLString);
+        MadUtil.logMessage(null, Log.DEBUG, "Try to download banner: ", imageURLString);
 
+        MadConnectivityMonitor.onRequestStarted();
         try {
             response = client.execute(getRequest);
 
-            MadUtil.logMessage(null, Log.DEBUG, "Response Code=> " + response.getStatusLine().getStatusCode());
+            MadUtil.logMessage(null, Log.DEBUG, "Response Code=> ", response.getStatusLine().getStatusCode());
 
             HttpEntity entity = response.getEntity();
             int responseCode = response.getStatusLine().getStatusCode();
 
-            if (responseCode == 200 && entity != null) {
-
-                inputStream = response.getEntity().getContent();
-                byteArrayOutputStream = new ByteArrayOutputStream();
-
-                int input = inputStream.read();
-                while (input != -1) {
-                    byteArrayOutputStream.write(input);
-                    input = inputStream.read();
+            if (responseCode == 304 && cachedCreative != null) {
+                MadUtil.logMessage(null, Log.DEBUG, "Cached banner is still valid");
+                MadHttpTransport.releaseResponse(response);
+                long expires = getExpiryTime(response);
+                cache.revalidated(cachedCreative, expires);
+                setBannerVersion(cachedCreative.eTag, cachedCreative.lastModified, expires);
+                returnByteArray = cachedCreative.data;
+            } else if (responseCode == 200 && entity != null) {
+                long contentLength = entity.getContentLength();
+                if (contentLength > MadUtil.MAX_BANNER_SIZE) {
+                    // the connection is closed instead of reading the body, a cached banner is still used
+                    MadUtil.logMessage(null, Log.DEBUG, "Banner exceeds maximum size in bytes: ", contentLength);
+                    getRequest.abort();
+                } else {
+                    inputStream = entity.getContent();
+                    returnByteArray = MadUtil.readStream(inputStream, contentLength, MadUtil.MAX_BANNER_SIZE);
+
+                    String eTag = getHeaderValue(response, "ETag");
+                    String lastModified = getHeaderValue(response, "Last-Modified");
+                    long expires = getExpiryTime(response);
+                    cache.miss();
+                    cache.put(imageURLString, returnByteArray, eTag, lastModified, expires);
+                    setBannerVersion(eTag, lastModified, expires);
                 }
-                returnByteArray = byteArrayOutputStream.toByteArray();
             } else {
-                MadUtil.logMessage(null, Log.DEBUG, "Could not download banner because response code is "+ responseCode +" (expected 200) or empty body");
+                MadUtil.logMessage(null, Log.DEBUG, "Could not download banner, expected response code 200 and a body, response code is ", responseCode);
+                MadHttpTransport.releaseResponse(response);
             }
         } catch (IOException e) {
-            MadUtil.logMessage(null, Log.DEBUG, "Cannot fetch banner or icon from server");
-            e.printStackTrace();
+            MadUtil.logMessage(null, Log.DEBUG, "Cannot fetch banner or icon from server", e);
+            getRequest.abort();
         } finally {
             // close all streams
             if (inputStream != null) {
@@ -179,17 +243,35 @@ public class Ad {
                 } catch (IOException e) {
                 }
             }
+            MadConnectivityMonitor.onRequestDone();
+        }
 
-            if (byteArrayOutputStream != null) {
-                try {
-                    byteArrayOutputStream.close();
-                } catch (IOException e) {
-                }
-            }
+        if (returnByteArray == null && cachedCreative != null) {
+            MadUtil.logMessage(null, Log.DEBUG, "Using stale cached banner: ", imageURLString);
+            setBannerVersion(cachedCreative.eTag, cachedCreative.lastModified, cachedCreative.expires);
+            return cachedCreative.data;
         }
         return returnByteArray;
     }
 
+    /**
+     * Remembers the version of the creative, the banner is decoded from
+     */
+    private void setBannerVersion(String eTag, String lastModified, long expires) {
+        bannerValidator = eTag != null ? eTag : lastModified;
+        bannerExpires = expires;
+    }
+
+    private static long getExpiryTime(HttpResponse response) {
+        return MadCreativeCache.getExpiryTime(getHeaderValue(response, "Cache-Control"),
+                getHeaderValue(response, "Expires"));
+    }
+
+    private static String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
     /**
      * Handles the click action (opens the click url)
      */
@@ -200,8 +282,7 @@ public class Ad {
         try {
             context.startActivity(intent);
         } catch (Exception e) {
-            MadUtil.logMessage(null, Log.DEBUG, "Failed to open URL : " + clickURL);
-            e.printStackTrace();
+            MadUtil.logMessage(null, Log.DEBUG, "Failed to open URL : " + clickURL, e);
         }
     }
 
@@ -221,7 +302,36 @@ public class Ad {
         return hasBanner;
     }
 
-    protected byte[] getImageByteArray() {
-        return imageByteArray;
+    /**
+     * @return true, if the ad was created from the cache without any request, e.g. from the
+     *      {@link MadAdInventory}
+     */
+    protected boolean isCacheOnly() {
+        return cacheOnly;
+    }
+
+    /**
+     * @return true, if the banner is an animated gif
+     */
+    protected boolean isAnimated() {
+        return gifData != null;
+    }
+
+    /**
+     * @return the encoded banner of an animated ad, null for other ads
+     */
+    protected byte[] getGifData() {
+        return gifData;
+    }
+
+    /**
+     * @return milliseconds since the ad was received from the ad server
+     */
+    protected long getAge() {
+        return SystemClock.elapsedRealtime() - creationTime;
+    }
+
+    protected Bitmap getBannerBitmap() {
+        return bannerBitmap;
     }
 }
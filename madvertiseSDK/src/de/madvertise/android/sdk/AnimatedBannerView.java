@@ -16,81 +16,250 @@
 
 package de.madvertise.android.sdk;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Movie;
+import android.graphics.Rect;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 import android.view.View;
 
 /**
- * AnimatedBannerView.java View to show animated ads. This class actually
- * works, but has problems with the different gif formats and should not be used
- * in version 1.0. Error handling is not implemented yet. Both problems will be
- * addressed in the upcoming releases of the sdk. <br>
+ * AnimatedBannerView.java View to show animated ads. The gif is decoded
+ * frame by frame with {@link MadGifDecoder} from the banner in memory, only
+ * the frame, that is shown, and the next one are kept as bitmaps. <br>
+ * Frames are decoded on a single background thread, shared by all animated
+ * banners, the ui thread only swaps in the finished bitmap. The next frame is
+ * decoded while the current one is shown, so it is ready, when the delay of
+ * the current frame is over. <br>
+ * The view only animates, while it is attached to a window and visible.
  */
 class AnimatedBannerView extends View {
 
-    private Movie movie;
+    private static HandlerThread decodeThread = null;
+    private static Handler decodeHandler = null;
 
-    // private long movieStart;
-    private static final String CACHED_BANNER_FILE = "cachedBanner.gif";
+    private final Handler handler = new Handler();
+    private final Rect bounds = new Rect();
 
-    private Handler handler = new Handler();
+    private Animation animation = null;
+    // the frame, that is drawn, or the first frame decoded by the ad, until
+    // the decoder delivers it
+    private Bitmap frameBitmap = null;
+    private boolean attached = false;
+    private boolean animating = false;
+
+    private final Runnable nextFrame = new Runnable() {
+        public void run() {
+            if (animation.frameReady) {
+                showDecodedFrame();
+            } else {
+                // shown, as soon as it is decoded
+                animation.waiting = true;
+            }
+        }
+    };
+
+    /**
+     * Frames of one gif. The decoder and the back bitmap belong to the decode
+     * thread, while a frame is decoded, and to the ui thread otherwise.
+     */
+    private class Animation implements Runnable {
+        private final byte[] gifData;
+        private MadGifDecoder decoder = null;
+        private Bitmap backBitmap = null;
+        private int backDelay;
+        private volatile boolean failed = false;
+
+        // ui thread only
+        private int frameDelay;
+        private boolean decoding = false;
+        private boolean frameReady = false;
+        private boolean waiting = false;
+
+        private final Runnable onFrameDecoded = new Runnable() {
+            public void run() {
+                decoding = false;
+                // a new gif was set in the meantime
+                if (animation != Animation.this) return;
+
+                if (failed) {
+                    stopAnimation();
+                    return;
+                }
+                frameReady = true;
+                if (waiting) showDecodedFrame();
+            }
+        };
+
+        private Animation(byte[] gifData) {
+            this.gifData = gifData;
+        }
+
+        // executed in the decode thread
+        public void run() {
+            try {
+                if (decoder == null) {
+                    decoder = new MadGifDecoder(new ByteArrayInputStream(gifData));
+                }
+                if (!decoder.readFrame()) {
+                    // start over after the last frame
+                    decoder.start(new ByteArrayInputStream(gifData));
+                    if (!decoder.readFrame()) throw new IOException("Gif without frames");
+                }
+                if (backBitmap == null) {
+                    backBitmap = Bitmap.createBitmap(decoder.getWidth(), decoder.getHeight(), Bitmap.Config.ARGB_8888);
+                }
+                backBitmap.setPixels(decoder.getPixels(), 0, decoder.getWidth(), 0, 0, decoder.getWidth(), decoder.getHeight());
+                backDelay = decoder.getFrameDelay();
+            } catch (IOException e) {
+                MadUtil.logMessage(null, Log.DEBUG, "Could not decode banner frame: ", e.getMessage());
+                failed = true;
+            } catch (OutOfMemoryError e) {
+                MadUtil.logMessage(null, Log.DEBUG, "Not enough memory to decode banner frame");
+                failed = true;
+            }
+            handler.post(onFrameDecoded);
+        }
+
+        private void decodeNextFrame() {
+            if (decoding || frameReady || failed) return;
+            decoding = true;
+            getDecodeHandler().post(this);
+        }
+    }
 
     public AnimatedBannerView(Context context) {
         super(context);
         setFocusable(true);
+    }
+
+    /**
+     * Shows an animated gif. The first frame is shown right away, the
+     * animation starts, when the next frames are decoded.
+     *
+     * @param gifData
+     *            the encoded gif
+     * @param firstFrame
+     *            the first frame, already decoded
+     */
+    protected void setGif(byte[] gifData, Bitmap firstFrame) {
+        if (animation != null && animation.gifData == gifData) return;
+
+        stopAnimation();
+        boolean sizeChanged = frameBitmap == null || firstFrame.getWidth() != frameBitmap.getWidth()
+                || firstFrame.getHeight() != frameBitmap.getHeight();
+        frameBitmap = firstFrame;
+        animation = new Animation(gifData);
+        // the first frame is decoded again, its delay is needed
+        animation.waiting = true;
+        animation.decodeNextFrame();
+
+        if (sizeChanged) requestLayout();
+        invalidate();
+        updateAnimation();
+    }
 
-        // try to open downloaded banner
-        FileInputStream file = null;
-        try {
-            file = context.openFileInput(CACHED_BANNER_FILE);
-        } catch (FileNotFoundException e) {
-            if (MadUtil.PRINT_LOG)
-                Log.d(MadUtil.LOG, "Could not load cached banner");
-            e.printStackTrace();
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        attached = true;
+        updateAnimation();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        attached = false;
+        updateAnimation();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateAnimation();
+    }
+
+    @Override
+    public void setVisibility(int visibility) {
+        super.setVisibility(visibility);
+        updateAnimation();
+    }
+
+    /**
+     * Starts or stops the animation, depending on whether the view can be seen
+     */
+    private void updateAnimation() {
+        boolean shouldAnimate = attached && animation != null && !animation.failed && getWindowVisibility() == VISIBLE && isShown();
+        if (shouldAnimate == animating) return;
+
+        if (shouldAnimate) {
+            animating = true;
+            handler.postDelayed(nextFrame, animation.frameDelay);
+            animation.decodeNextFrame();
+        } else {
+            stopAnimation();
         }
+    }
+
+    private void stopAnimation() {
+        animating = false;
+        handler.removeCallbacks(nextFrame);
+        if (animation != null) animation.waiting = false;
+    }
+
+    /**
+     * Swaps in the decoded frame and starts decoding the one after it
+     */
+    private void showDecodedFrame() {
+        Animation current = animation;
+        Bitmap shownBitmap = frameBitmap;
+        boolean firstFrame = current.frameDelay == 0;
 
-        byte[] byteArray = MadUtil.convertStreamToByteArray(file);
-        movie = Movie.decodeByteArray(byteArray, 0, byteArray.length);
+        frameBitmap = current.backBitmap;
+        // the first frame of the ad is not reused, it may be shown by another view
+        current.backBitmap = firstFrame ? null : shownBitmap;
+        current.frameDelay = current.backDelay;
+        current.frameReady = false;
+        current.waiting = false;
+        invalidate();
 
-        if (movie == null) {
-            if (MadUtil.PRINT_LOG)
-                Log.d(MadUtil.LOG, "Movie is null");
+        if (animating) {
+            handler.postDelayed(nextFrame, current.frameDelay);
+            current.decodeNextFrame();
         }
+    }
 
-        // start thread to update the view
-        new Thread() {
-            @Override
-            public void run() {
-                while (!Thread.currentThread().isInterrupted()) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            invalidate();
-                        }
-                    });
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-            }
-        }.start();
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (frameBitmap == null) {
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+        setMeasuredDimension(resolveSize(frameBitmap.getWidth(), widthMeasureSpec), resolveSize(frameBitmap.getHeight(), heightMeasureSpec));
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (movie != null) {
-            long now = android.os.SystemClock.uptimeMillis();
-            int duration = Math.max(movie.duration(), 1);
-            int pos = (int)(now % duration);
-            movie.setTime(pos);
-            movie.draw(canvas, getWidth() - movie.width(), getHeight() - movie.height());
+        if (frameBitmap != null) {
+            // frames are decoded at the size of the gif, the first frame
+            // may be downsampled
+            bounds.set(0, 0, getWidth(), getHeight());
+            canvas.drawBitmap(frameBitmap, null, bounds, null);
+        }
+    }
+
+    private static synchronized Handler getDecodeHandler() {
+        if (decodeHandler == null) {
+            decodeThread = new HandlerThread("MadGifDecoder", Process.THREAD_PRIORITY_BACKGROUND);
+            decodeThread.start();
+            decodeHandler = new Handler(decodeThread.getLooper());
         }
+        return decodeHandler;
     }
 }
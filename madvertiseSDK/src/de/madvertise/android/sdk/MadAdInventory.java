@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Small persisted inventory of the ads, that were served recently. Their creatives are kept by
+ * the {@link MadCreativeCache}. An ad view shows an ad of the inventory, while it has no ad of its
+ * own: right after a cold start, before the first request is answered, and when requests fail,
+ * e.g. while the device is offline.
+ * <p>
+ * The inventory is written to a single file in the application's cache directory, through a
+ * temporary file, so a crash never leaves a partially written inventory behind.
+ */
+class MadAdInventory {
+
+	private static final String INVENTORY_FILE = "madvertise_inventory";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int FILE_FORMAT_VERSION = 1;
+	private static final int MAX_ADS = 10;
+
+	private static MadAdInventory instance = null;
+
+	private final File file;
+
+	// most recently served ad first
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	private static class Entry {
+		private final String bannerType;
+		private final long servedTime;
+		private final MadAdParser.AdData ad;
+
+		private Entry(String bannerType, long servedTime, MadAdParser.AdData ad) {
+			this.bannerType = bannerType;
+			this.servedTime = servedTime;
+			this.ad = ad;
+		}
+	}
+
+	/**
+	 * Returns the process wide inventory
+	 *
+	 * @param context
+	 *            any context of the application
+	 * @return the inventory
+	 */
+	protected static synchronized MadAdInventory getInstance(Context context) {
+		if (instance == null) {
+			instance = new MadAdInventory(new File(context.getApplicationContext().getCacheDir(), INVENTORY_FILE));
+		}
+		return instance;
+	}
+
+	private MadAdInventory(File file) {
+		this.file = file;
+		read();
+	}
+
+	/**
+	 * Adds an ad, that was just shown, as the most recent ad of the inventory. An ad, whose banner
+	 * could not be loaded, is kept as a text ad, like it was shown. Blocking call, the inventory is
+	 * written right away.
+	 *
+	 * @param bannerType
+	 *            banner type, the ad was requested for
+	 * @param served
+	 *            the ad
+	 */
+	protected synchronized void add(String bannerType, Ad served) {
+		MadAdParser.AdData ad = new MadAdParser.AdData();
+		ad.clickURL = toString(served.getClickURL());
+		ad.bannerURL = toString(served.getBannerURL());
+		ad.text = toString(served.getText());
+		ad.hasBannerLink = served.hasBanner();
+
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			MadAdParser.AdData inventoryAd = entries.get(i).ad;
+			if (inventoryAd.clickURL.equals(ad.clickURL) && inventoryAd.bannerURL.equals(ad.bannerURL)) {
+				entries.remove(i);
+			}
+		}
+
+		entries.add(0, new Entry(bannerType, System.currentTimeMillis(), ad));
+		while (entries.size() > MAX_ADS) {
+			entries.remove(entries.size() - 1);
+		}
+		write();
+	}
+
+	/**
+	 * Returns the most recent ad of a banner type, that is still valid
+	 *
+	 * @param bannerType
+	 * @param maxAgeMillis
+	 *            time in milliseconds, an ad is valid after it was served
+	 * @return the ad or null
+	 */
+	protected synchronized MadAdParser.AdData get(String bannerType, long maxAgeMillis) {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			if (now - entry.servedTime > maxAgeMillis || now < entry.servedTime) continue;
+			if (entry.bannerType.equals(bannerType)) return entry.ad;
+		}
+		return null;
+	}
+
+	private static String toString(String value) {
+		return value != null ? value : "";
+	}
+
+	private void read() {
+		if (!file.exists()) return;
+
+		DataInputStream inputStream = null;
+		try {
+			inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), MadUtil.STREAM_BUFFER_SIZE));
+			if (inputStream.readInt() != FILE_FORMAT_VERSION) {
+				throw new IOException("Unknown inventory file format");
+			}
+			int count = inputStream.readInt();
+			for (int i = 0; i < count && i < MAX_ADS; i++) {
+				String bannerType = inputStream.readUTF();
+				long servedTime = inputStream.readLong();
+				MadAdParser.AdData ad = new MadAdParser.AdData();
+				ad.clickURL = inputStream.readUTF();
+				ad.bannerURL = inputStream.readUTF();
+				ad.text = inputStream.readUTF();
+				ad.hasBannerLink = inputStream.readBoolean();
+				entries.add(new Entry(bannerType, servedTime, ad));
+			}
+			MadUtil.logMessage(null, Log.DEBUG, "Number of ads in inventory: ", entries.size());
+		} catch (IOException e) {
+			MadUtil.logMessage(null, Log.DEBUG, "Could not read ad inventory, removing it");
+			entries.clear();
+			file.delete();
+		} finally {
+			if (inputStream != null) {
+				try {
+					inputStream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void write() {
+		File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+		DataOutputStream outputStream = null;
+		try {
+			outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), MadUtil.STREAM_BUFFER_SIZE));
+			outputStream.writeInt(FILE_FORMAT_VERSION);
+			outputStream.writeInt(entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				Entry entry = entries.get(i);
+				outputStream.writeUTF(entry.bannerType);
+				outputStream.writeLong(entry.servedTime);
+				outputStream.writeUTF(entry.ad.clickURL);
+				outputStream.writeUTF(entry.ad.bannerURL);
+				outputStream.writeUTF(entry.ad.text);
+				outputStream.writeBoolean(entry.ad.hasBannerLink);
+			}
+			outputStream.close();
+			outputStream = null;
+
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tempFile);
+			}
+		} catch (IOException e) {
+			MadUtil.logMessage(null, Log.DEBUG, "Could not write ad inventory: ", e.getMessage());
+			tempFile.delete();
+		} finally {
+			if (outputStream != null) {
+				try {
+					outputStream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming pull parser for ad server responses. Reads the fields of an ad (click_url,
+ * banner_url, text, has_banner) straight from the UTF-8 encoded response stream, without building
+ * the response string or a json object tree first. All other fields are skipped.
+ * <p>
+ * A response is either a single ad object or, for batch requests, an array of ad objects and
+ * nulls.
+ * <p>
+ * Ad servers, that support it, answer a binary request (see {@link MadRequestBody}) with a binary
+ * response, which is read by {@link #parseBinary(InputStream)}:
+ *
+ * <pre>
+ * version (1 byte, currently 1)
+ * number of slots (2 bytes)
+ * for every slot: 0 (no ad) or 1 (ad) (1 byte), followed by the fields of the ad:
+ *     tag (1 byte), value (2 byte length + modified UTF-8)
+ *     ... until tag 0
+ * </pre>
+ *
+ * The tags are 1 (click_url), 2 (banner_url), 3 (text) and 4 (has_banner, "true" or "false").
+ * Unknown tags are skipped.
+ */
+class MadAdParser {
+
+	private static final String CLICK_URL_CODE = "click_url";
+	private static final String BANNER_URL_CODE = "banner_url";
+	private static final String TEXT_CODE = "text";
+	private static final String HAS_BANNER_CODE = "has_banner";
+
+	private static final int BUFFER_SIZE = 1024;
+
+	private static final int BINARY_END_TAG = 0;
+	private static final int BINARY_CLICK_URL_TAG = 1;
+	private static final int BINARY_BANNER_URL_TAG = 2;
+	private static final int BINARY_TEXT_TAG = 3;
+	private static final int BINARY_HAS_BANNER_TAG = 4;
+
+	private final Reader reader;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	private final StringBuilder stringBuilder = new StringBuilder();
+
+	/**
+	 * Fields of an ad, as delivered by the ad server
+	 */
+	static class AdData {
+		protected String clickURL = "";
+		protected String bannerURL = "";
+		protected String text = "";
+		protected boolean hasBannerLink = true;
+	}
+
+	private MadAdParser(InputStream inputStream) throws IOException {
+		reader = new InputStreamReader(inputStream, MadUtil.ENCODING);
+	}
+
+	/**
+	 * Parses an ad server response. The stream is not closed.
+	 *
+	 * @param inputStream
+	 *            UTF-8 encoded response body
+	 * @return one entry for a single ad, an entry per slot for a batch response, null entries
+	 *         stand for slots without an ad
+	 * @throws IOException
+	 *             if the stream could not be read or is no valid response
+	 */
+	protected static List<AdData> parse(InputStream inputStream) throws IOException {
+		return new MadAdParser(inputStream).parseDocument();
+	}
+
+	/**
+	 * Parses a binary ad server response. The stream is not closed.
+	 *
+	 * @param inputStream
+	 *            response body in the binary format
+	 * @return one entry per slot, null entries stand for slots without an ad
+	 * @throws IOException
+	 *             if the stream could not be read or is no valid response
+	 */
+	protected static List<AdData> parseBinary(InputStream inputStream) throws IOException {
+		DataInputStream input = new DataInputStream(inputStream);
+		if (input.readUnsignedByte() != MadRequestBody.BINARY_FORMAT_VERSION) {
+			throw new IOException("Invalid ad response: Unknown binary format version");
+		}
+
+		int slots = input.readUnsignedShort();
+		List<AdData> ads = new ArrayList<AdData>(slots);
+		for (int i = 0; i < slots; i++) {
+			if (input.readUnsignedByte() == 0) {
+				ads.add(null);
+				continue;
+			}
+
+			AdData ad = new AdData();
+			int tag;
+			while ((tag = input.readUnsignedByte()) != BINARY_END_TAG) {
+				String value = input.readUTF();
+				if (tag == BINARY_CLICK_URL_TAG) {
+					ad.clickURL = value;
+				} else if (tag == BINARY_BANNER_URL_TAG) {
+					ad.bannerURL = value;
+				} else if (tag == BINARY_TEXT_TAG) {
+					ad.text = value;
+				} else if (tag == BINARY_HAS_BANNER_TAG) {
+					ad.hasBannerLink = Boolean.parseBoolean(value);
+				}
+			}
+			ads.add(ad);
+		}
+		return ads;
+	}
+
+	private List<AdData> parseDocument() throws IOException {
+		List<AdData> ads = new ArrayList<AdData>();
+
+		int c = nextNonWhitespace();
+		if (c == '{') {
+			ads.add(readAd());
+		} else if (c == '[') {
+			c = nextNonWhitespace();
+			while (c != ']') {
+				if (c == '{') {
+					ads.add(readAd());
+				} else if (c == 'n') {
+					expectLiteral("ull");
+					ads.add(null);
+				} else {
+					throw syntaxError("Expected ad object or null");
+				}
+
+				c = nextNonWhitespace();
+				if (c == ',') {
+					c = nextNonWhitespace();
+				} else if (c != ']') {
+					throw syntaxError("Expected ',' or ']'");
+				}
+			}
+		} else {
+			throw syntaxError("Expected '{' or '['");
+		}
+		return ads;
+	}
+
+	/**
+	 * Reads the members of an ad object, the opening brace was already consumed.
+	 */
+	private AdData readAd() throws IOException {
+		AdData ad = new AdData();
+
+		int c = nextNonWhitespace();
+		while (c != '}') {
+			if (c != '"') throw syntaxError("Expected name");
+			String name = readString();
+			if (nextNonWhitespace() != ':') throw syntaxError("Expected ':'");
+
+			if (CLICK_URL_CODE.equals(name)) {
+				ad.clickURL = nullToEmpty(readScalar());
+			} else if (BANNER_URL_CODE.equals(name)) {
+				ad.bannerURL = nullToEmpty(readScalar());
+			} else if (TEXT_CODE.equals(name)) {
+				ad.text = nullToEmpty(readScalar());
+			} else if (HAS_BANNER_CODE.equals(name)) {
+				String value = readScalar();
+				ad.hasBannerLink = Boolean.parseBoolean(value == null ? "true" : value);
+			} else {
+				skipValue();
+			}
+
+			c = nextNonWhitespace();
+			if (c == ',') {
+				c = nextNonWhitespace();
+			} else if (c != '}') {
+				throw syntaxError("Expected ',' or '}'");
+			}
+		}
+		return ad;
+	}
+
+	/**
+	 * Reads a string, number or literal as string. Returns null for a json null or a nested value.
+	 */
+	private String readScalar() throws IOException {
+		int c = nextNonWhitespace();
+		if (c == '"') return readString();
+		if (c == '{' || c == '[') {
+			position--;
+			skipValue();
+			return null;
+		}
+
+		position--;
+		String literal = readLiteral();
+		return literal.equals("null") ? null : literal;
+	}
+
+	/**
+	 * Reads a string, the opening quote was already consumed.
+	 */
+	private String readString() throws IOException {
+		stringBuilder.setLength(0);
+		while (true) {
+			int c = read();
+			if (c == '"') return stringBuilder.toString();
+			if (c == '\\') {
+				c = read();
+				switch (c) {
+				case 'b': stringBuilder.append('\b'); break;
+				case 'f': stringBuilder.append('\f'); break;
+				case 'n': stringBuilder.append('\n'); break;
+				case 'r': stringBuilder.append('\r'); break;
+				case 't': stringBuilder.append('\t'); break;
+				case 'u':
+					int codePoint = 0;
+					for (int i = 0; i < 4; i++) {
+						int digit = Character.digit(read(), 16);
+						if (digit < 0) throw syntaxError("Invalid unicode escape");
+						codePoint = (codePoint << 4) | digit;
+					}
+					stringBuilder.append((char) codePoint);
+					break;
+				default:
+					// \" \\ \/
+					stringBuilder.append((char) c);
+				}
+			} else {
+				stringBuilder.append((char) c);
+			}
+		}
+	}
+
+	private String readLiteral() throws IOException {
+		stringBuilder.setLength(0);
+		while (true) {
+			int c = peek();
+			if (c == -1 || c == ',' || c == '}' || c == ']' || c == ':' || isWhitespace(c)) break;
+			stringBuilder.append((char) read());
+		}
+		if (stringBuilder.length() == 0) throw syntaxError("Expected value");
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * Skips a complete value including nested objects and arrays.
+	 */
+	private void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			int c = nextNonWhitespace();
+			if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				depth--;
+			} else if (c == '"') {
+				skipString();
+			} else if (c != ',' && c != ':') {
+				position--;
+				readLiteral();
+			}
+		} while (depth > 0);
+	}
+
+	private void skipString() throws IOException {
+		while (true) {
+			int c = read();
+			if (c == '"') return;
+			if (c == '\\') read();
+		}
+	}
+
+	private void expectLiteral(String rest) throws IOException {
+		for (int i = 0; i < rest.length(); i++) {
+			if (read() != rest.charAt(i)) throw syntaxError("Unexpected literal");
+		}
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (isWhitespace(c));
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if (position == limit && !fillBuffer()) return -1;
+		return buffer[position];
+	}
+
+	/**
+	 * Reads the next char, throws at the end of the stream, as a valid response never ends in
+	 * the middle of a value.
+	 */
+	private int read() throws IOException {
+		if (position == limit && !fillBuffer()) throw syntaxError("Unexpected end of response");
+		return buffer[position++];
+	}
+
+	private boolean fillBuffer() throws IOException {
+		// keep the last char, so a single char can always be pushed back
+		if (limit > 0) {
+			buffer[0] = buffer[limit - 1];
+			position = 1;
+			limit = 1;
+		}
+		int count = reader.read(buffer, limit, buffer.length - limit);
+		if (count <= 0) return false;
+		limit += count;
+		return true;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	private static String nullToEmpty(String value) {
+		return value != null ? value : "";
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException("Invalid ad response: " + message);
+	}
+}
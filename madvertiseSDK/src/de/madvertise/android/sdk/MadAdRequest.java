@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+
+import android.util.Log;
+
+/**
+ * Builds and sends requests to the madvertise ad server. Used for single ad requests of a
+ * {@link MadView} as well as for batched requests of several views.
+ */
+class MadAdRequest {
+
+	private static final String BINARY_ACCEPT = MadRequestBody.BINARY_CONTENT_TYPE + ", application/json;q=0.5";
+
+	/**
+	 * Creates a post request to the ad server
+	 *
+	 * @param path
+	 *            path on the ad server, e.g. "/site/&lt;token&gt;"
+	 * @param body
+	 *            request parameters, url encoded or binary
+	 * @return post request
+	 */
+	protected static HttpPost createPostRequest(String path, MadRequestBody body) {
+		HttpPost postRequest = new HttpPost(MadUtil.getServerUrl() + path);
+		postRequest.setEntity(body.createEntity());
+		if (body.isBinary()) {
+			postRequest.setHeader("Accept", BINARY_ACCEPT);
+		}
+
+		if (MadUtil.isLoggable(Log.DEBUG)) {
+			MadUtil.logMessage(null, Log.DEBUG, "Post request created");
+			MadUtil.logMessage(null, Log.DEBUG, "Uri : ", postRequest.getURI().toASCIIString());
+			MadUtil.logMessage(null, Log.DEBUG, "All headers : ", MadUtil.getAllHeadersAsString(postRequest.getAllHeaders()));
+			MadUtil.logMessage(null, Log.DEBUG, "All request parameters :", body);
+		}
+
+		return postRequest;
+	}
+
+	/**
+	 * Receives the result of an ad request
+	 */
+	interface Callback {
+		/**
+		 * Called once per request, on the thread of its last attempt
+		 *
+		 * @param ads
+		 *            parsed ads (see {@link MadAdParser#parse(InputStream)}), null if the request
+		 *            failed or the response was invalid
+		 */
+		void onResponse(List<MadAdParser.AdData> ads);
+	}
+
+	/**
+	 * Sends a request to the ad server. The first attempt is sent right away and blocks, so the
+	 * method must not be called from the ui thread. Timeouts, network errors and server errors
+	 * are retried with a growing delay on the shared executor, as long as the deadline budget of
+	 * the request (see {@link MadRequestBudget}) allows it. An invalid response is never retried.
+	 *
+	 * @param postRequest
+	 *            request to send
+	 * @param testMode
+	 *            true to log the debug response of the ad server
+	 * @param maxRetries
+	 *            number of retries after a timeout, a network error or a server error
+	 * @param callback
+	 *            receives the ads; json and binary responses are told apart by their content type
+	 */
+	protected static void execute(HttpPost postRequest, boolean testMode, int maxRetries, Callback callback) {
+		new Attempt(postRequest, testMode, maxRetries, callback).run();
+	}
+
+	/**
+	 * The attempts of a request, each retry runs the same instance again
+	 */
+	private static class Attempt implements Runnable {
+		private final HttpPost postRequest;
+		private final boolean testMode;
+		private final int maxRetries;
+		private final Callback callback;
+		private final MadRequestBudget budget = new MadRequestBudget();
+		private HttpPost request;
+		private int attempt = 0;
+
+		private Attempt(HttpPost postRequest, boolean testMode, int maxRetries, Callback callback) {
+			this.postRequest = postRequest;
+			this.testMode = testMode;
+			this.maxRetries = maxRetries;
+			this.callback = callback;
+			this.request = postRequest;
+		}
+
+		public void run() {
+			List<MadAdParser.AdData> ads = null;
+			try {
+				ads = executeAttempt(request, testMode, budget);
+			} catch (IOException e) {
+				MadUtil.logMessage(null, Log.DEBUG, "Ad request failed: ", e.getMessage());
+				budget.onFailure(e);
+
+				long delay = budget.getRetryDelay(attempt);
+				if (attempt < maxRetries && budget.canRetry(delay)) {
+					attempt++;
+					// an aborted request cannot be sent again
+					request = copyRequest(postRequest);
+					MadUtil.logMessage(null, Log.DEBUG, "Retrying ad request in milliseconds: ", delay);
+					if (MadExecutor.schedule(this, delay)) return;
+				}
+			}
+			callback.onResponse(ads);
+		}
+	}
+
+	/**
+	 * Sends a request once. Reading the response fails, when the budget runs out.
+	 *
+	 * @return parsed ads or null, if there is no ad or the response is invalid
+	 * @throws IOException
+	 *             if the request failed with a timeout, a network error or a server error and may
+	 *             be retried
+	 */
+	private static List<MadAdParser.AdData> executeAttempt(HttpPost postRequest, boolean testMode, MadRequestBudget budget)
+			throws IOException {
+		HttpClient httpClient = MadHttpTransport.getHttpClient();
+		HttpResponse httpResponse = null;
+		InputStream inputStream = null;
+		List<MadAdParser.AdData> ads = null;
+
+		budget.applyTo(postRequest.getParams());
+
+		MadConnectivityMonitor.onRequestStarted();
+		try {
+			MadUtil.logMessage(null, Log.DEBUG, "Sending request");
+			long start = System.nanoTime();
+			httpResponse = httpClient.execute(postRequest);
+			MadRequestBudget.onFirstByte(MadLatencyTracker.record(MadView.LatencyPhase.FIRST_BYTE, start));
+
+			MadUtil.logMessage(null, Log.DEBUG, "Response Code => ", httpResponse.getStatusLine().getStatusCode());
+			if (testMode)
+				MadUtil.logMessage(null, Log.DEBUG, "Madvertise Debug Response: ", httpResponse.getLastHeader("X-Madvertise-Debug"));
+			int responseCode = httpResponse.getStatusLine().getStatusCode();
+
+			HttpEntity entity = httpResponse.getEntity();
+
+			if (responseCode == 200 && entity != null) {
+				start = System.nanoTime();
+				inputStream = new DeadlineInputStream(entity.getContent(), budget);
+				Header contentType = entity.getContentType();
+				try {
+					if (contentType != null && contentType.getValue().startsWith(MadRequestBody.BINARY_CONTENT_TYPE)) {
+						ads = MadAdParser.parseBinary(inputStream);
+					} else {
+						ads = MadAdParser.parse(inputStream);
+					}
+				} catch (InterruptedIOException e) {
+					// the response was too slow
+					throw e;
+				} catch (SocketException e) {
+					// the connection was lost
+					throw e;
+				} catch (IOException e) {
+					// malformed, truncated or empty, a retry would get the same response
+					MadUtil.logMessage(null, Log.DEBUG, "Invalid ad response: ", e.getMessage());
+					postRequest.abort();
+					return null;
+				}
+				MadLatencyTracker.record(MadView.LatencyPhase.PARSE, start);
+				MadUtil.logMessage(null, Log.DEBUG, "Number of ads in response: ", ads.size());
+			} else {
+				MadHttpTransport.releaseResponse(httpResponse);
+				if (responseCode >= 500) {
+					throw new IOException("Server error " + responseCode);
+				}
+			}
+		} catch (ClientProtocolException e) {
+			MadUtil.logMessage(null, Log.DEBUG, "Error in HTTP request / protocol", e);
+			postRequest.abort();
+		} catch (IOException e) {
+			postRequest.abort();
+			throw e;
+		} finally {
+			if (inputStream != null)
+				try {
+					inputStream.close();
+				} catch (IOException e) {
+				}
+			MadConnectivityMonitor.onRequestDone();
+		}
+		return ads;
+	}
+
+	/**
+	 * Fails every read, that starts after the budget of the request ran out. A single read is
+	 * limited by the socket timeout, so reading a slow response never takes much longer than the
+	 * budget. The expired deadline is no socket timeout and does not change the timeouts of the
+	 * following requests.
+	 */
+	private static class DeadlineInputStream extends FilterInputStream {
+		private final MadRequestBudget budget;
+
+		private DeadlineInputStream(InputStream inputStream, MadRequestBudget budget) {
+			super(inputStream);
+			this.budget = budget;
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkDeadline();
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			checkDeadline();
+			return super.read(buffer, offset, length);
+		}
+
+		private void checkDeadline() throws IOException {
+			if (budget.getRemainingMillis() <= 0) {
+				throw new MadRequestBudget.DeadlineExceededException();
+			}
+		}
+	}
+
+	private static HttpPost copyRequest(HttpPost postRequest) {
+		HttpPost copy = new HttpPost(postRequest.getURI());
+		copy.setHeaders(postRequest.getAllHeaders());
+		// the entity holds the request body in memory and can be sent again
+		copy.setEntity(postRequest.getEntity());
+		return copy;
+	}
+}
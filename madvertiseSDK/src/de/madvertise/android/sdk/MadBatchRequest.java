@@ -0,0 +1,235 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.client.methods.HttpPost;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Collects the ad requests of several ad views and sends them in a single http exchange. The
+ * parameters, that are the same for all views (ua, ip, uid, location, ...), are sent once,
+ * followed by the parameters of every slot:
+ *
+ * <pre>
+ * POST /site/&lt;token&gt;/batch
+ * ...&amp;slots=2&amp;banner_type_0=mma&amp;deliver_only_text_0=false&amp;banner_type_1=iab&amp;deliver_only_text_1=true
+ * </pre>
+ *
+ * The ad server answers with a json array, that contains an ad object (or null, if there is no
+ * ad) for every slot in the order of the request.
+ * <p>
+ * Requests are collected for a short moment, so all views, that are refreshed in the same batch
+ * of the {@link MadRefreshScheduler}, end up in the same request.
+ */
+class MadBatchRequest {
+
+	private static final long COLLECT_DELAY_MILLIS = 100;
+	private static final int MAX_SLOTS_PER_REQUEST = 8;
+
+	private static final Object LOCK = new Object();
+	private static Handler handler = null;
+	private static List<PendingSlot> pendingSlots = new ArrayList<PendingSlot>();
+
+	/**
+	 * An ad slot, that takes part in a batch request
+	 */
+	interface Slot {
+		Context getContext();
+
+		String getBannerType();
+
+		boolean isDeliverOnlyText();
+
+		boolean isTestMode();
+
+		/**
+		 * @return true, if the slot may be requested in the binary format of {@link MadRequestBody}
+		 */
+		boolean isCompactRequests();
+
+		/**
+		 * @return number of retries of a failed request, the batch uses the maximum of its slots
+		 */
+		int getMaxRequestRetries();
+
+		int getTargetWidth();
+
+		int getTargetHeight();
+
+		/**
+		 * Called on a background thread, when the batch request is done
+		 *
+		 * @param ad
+		 *            the ad for this slot or null, if there is none
+		 * @param prefetch
+		 *            the prefetch flag, the slot was queued with
+		 */
+		void onBatchLoaded(Ad ad, boolean prefetch);
+	}
+
+	/**
+	 * A slot, that waits for the next batch
+	 */
+	static class PendingSlot {
+		private final Slot slot;
+		private final boolean prefetch;
+
+		PendingSlot(Slot slot, boolean prefetch) {
+			this.slot = slot;
+			this.prefetch = prefetch;
+		}
+	}
+
+	private static final Runnable FLUSH = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Queues an ad request for the next batch. Every queued slot receives exactly one call of
+	 * {@link Slot#onBatchLoaded(Ad, boolean)}.
+	 *
+	 * @param slot
+	 * @param prefetch
+	 *            passed back to the slot with the result
+	 */
+	protected static void enqueue(Slot slot, boolean prefetch) {
+		synchronized (LOCK) {
+			pendingSlots.add(new PendingSlot(slot, prefetch));
+			if (pendingSlots.size() == 1) {
+				if (handler == null) handler = new Handler(Looper.getMainLooper());
+				handler.postDelayed(FLUSH, COLLECT_DELAY_MILLIS);
+			}
+		}
+	}
+
+	private static void flush() {
+		List<PendingSlot> slots;
+		synchronized (LOCK) {
+			slots = pendingSlots;
+			pendingSlots = new ArrayList<PendingSlot>();
+		}
+
+		for (int start = 0; start < slots.size(); start += MAX_SLOTS_PER_REQUEST) {
+			final List<PendingSlot> batch = slots.subList(start, Math.min(slots.size(), start + MAX_SLOTS_PER_REQUEST));
+			boolean queued = MadExecutor.execute(new Runnable() {
+				public void run() {
+					sendBatchRequest(batch);
+				}
+			});
+
+			if (!queued) {
+				for (int i = 0; i < batch.size(); i++) {
+					batch.get(i).slot.onBatchLoaded(null, batch.get(i).prefetch);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends one request for all slots of a batch. Blocking call.
+	 *
+	 * @param batch
+	 */
+	private static void sendBatchRequest(List<PendingSlot> batch) {
+		MadRequestContext requestContext;
+		try {
+			requestContext = MadRequestContext.get(batch.get(0).slot.getContext());
+		} catch (RuntimeException e) {
+			MadUtil.logMessage(null, Log.DEBUG, "Could not create request context: ", e.getMessage());
+			onBatchLoaded(batch, null);
+			return;
+		}
+		sendBatchRequest(requestContext, batch);
+	}
+
+	/**
+	 * Sends one request for all slots of a batch with the given request context. Blocking call.
+	 *
+	 * @param requestContext
+	 * @param batch
+	 */
+	protected static void sendBatchRequest(MadRequestContext requestContext, final List<PendingSlot> batch) {
+		MadUtil.logMessage(null, Log.DEBUG, "Fetching ads in one request, number of slots: ", batch.size());
+
+		boolean testMode = false;
+		int maxRetries = 0;
+		HttpPost postRequest;
+		try {
+			boolean compactRequests = true;
+			for (int i = 0; i < batch.size(); i++) {
+				testMode |= batch.get(i).slot.isTestMode();
+				compactRequests &= batch.get(i).slot.isCompactRequests();
+				maxRetries = Math.max(maxRetries, batch.get(i).slot.getMaxRequestRetries());
+			}
+
+			MadRequestBody body = new MadRequestBody(requestContext, compactRequests);
+			body.add("debug", Boolean.toString(testMode));
+			body.add("slots", Integer.toString(batch.size()));
+			for (int i = 0; i < batch.size(); i++) {
+				Slot slot = batch.get(i).slot;
+				body.add("banner_type_" + i, slot.getBannerType());
+				body.add("deliver_only_text_" + i, Boolean.toString(slot.isDeliverOnlyText()));
+			}
+
+			postRequest = MadAdRequest.createPostRequest("/site/" + requestContext.getSiteToken() + "/batch", body);
+		} catch (RuntimeException e) {
+			// e.g. a site token, that is not valid in an url
+			MadUtil.logMessage(null, Log.DEBUG, "Could not create batch request: ", e.getMessage());
+			onBatchLoaded(batch, null);
+			return;
+		}
+
+		MadAdRequest.execute(postRequest, testMode, maxRetries, new MadAdRequest.Callback() {
+			public void onResponse(List<MadAdParser.AdData> adData) {
+				onBatchLoaded(batch, adData);
+			}
+		});
+	}
+
+	/**
+	 * Creates the ads of a batch response and hands them to their slots
+	 *
+	 * @param batch
+	 * @param adData
+	 *            ads in the order of the slots, null if the request failed
+	 */
+	private static void onBatchLoaded(List<PendingSlot> batch, List<MadAdParser.AdData> adData) {
+		Ad[] ads = new Ad[batch.size()];
+		try {
+			for (int i = 0; adData != null && i < batch.size() && i < adData.size(); i++) {
+				if (adData.get(i) == null) continue;
+
+				// create ad, this is a blocking call, the banner is decoded to the size of the slot
+				Slot slot = batch.get(i).slot;
+				ads[i] = new Ad(slot.getContext(), adData.get(i), slot.getTargetWidth(), slot.getTargetHeight());
+			}
+		} finally {
+			for (int i = 0; i < batch.size(); i++) {
+				PendingSlot pendingSlot = batch.get(i);
+				pendingSlot.slot.onBatchLoaded(ads[i], pendingSlot.prefetch);
+			}
+		}
+	}
+}
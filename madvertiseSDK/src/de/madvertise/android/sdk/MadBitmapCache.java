@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Process wide memory cache of decoded banners, shared by all ad views. Banners are keyed by
+ * their url and the size they were decoded for, so an ad, that rotates back into a slot or is
+ * shown in two slots at once, is decoded only once. The cache is bounded by the number of bytes
+ * of the cached bitmaps and evicts the least recently used banner first.
+ * <p>
+ * A banner is only used without a check, while its creative is fresh in the
+ * {@link MadCreativeCache}. Afterwards it is only used, if the revalidated creative has the same
+ * validator (ETag or Last-Modified), so a changed creative is decoded again and replaces it.
+ * <p>
+ * Evicted bitmaps are only dropped, never recycled, as they may still be shown by a view.
+ * Reusing their memory for new decodes (BitmapFactory.Options.inBitmap) needs API level 11.
+ */
+class MadBitmapCache {
+
+	// at most an eighth of the heap, but never more than 4 MB
+	private static final long MAX_CACHE_SIZE = Math.min(Runtime.getRuntime().maxMemory() / 8, 4 * 1024 * 1024);
+
+	private static final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private static long cacheSize = 0;
+
+	private static long hitCount = 0;
+	private static long missCount = 0;
+
+	private static class Entry {
+		private final Bitmap bitmap;
+		private final String validator;
+		private final long expires;
+
+		private Entry(Bitmap bitmap, String validator, long expires) {
+			this.bitmap = bitmap;
+			this.validator = validator;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Returns a cached banner, whose creative is still fresh
+	 *
+	 * @param url
+	 *            banner url
+	 * @param targetWidth
+	 *            width the banner was decoded for
+	 * @param targetHeight
+	 *            height the banner was decoded for
+	 * @return decoded banner or null, if it is not cached or must be revalidated
+	 */
+	protected static synchronized Bitmap get(String url, int targetWidth, int targetHeight) {
+		Entry entry = cache.get(getKey(url, targetWidth, targetHeight));
+		if (entry != null && System.currentTimeMillis() < entry.expires) {
+			hitCount++;
+			return entry.bitmap;
+		}
+		missCount++;
+		return null;
+	}
+
+	/**
+	 * Returns a cached banner, that was decoded from the given version of its creative
+	 *
+	 * @param url
+	 *            banner url
+	 * @param targetWidth
+	 *            width the banner was decoded for
+	 * @param targetHeight
+	 *            height the banner was decoded for
+	 * @param validator
+	 *            ETag or Last-Modified header of the creative, null if it has none
+	 * @return decoded banner or null, if it is not cached or was decoded from another version
+	 */
+	protected static synchronized Bitmap get(String url, int targetWidth, int targetHeight, String validator) {
+		if (validator == null) return null;
+		Entry entry = cache.get(getKey(url, targetWidth, targetHeight));
+		if (entry != null && validator.equals(entry.validator)) {
+			hitCount++;
+			return entry.bitmap;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a decoded banner to the cache and evicts old banners, if necessary.
+	 *
+	 * @param url
+	 *            banner url
+	 * @param targetWidth
+	 *            width the banner was decoded for
+	 * @param targetHeight
+	 *            height the banner was decoded for
+	 * @param bitmap
+	 *            decoded banner
+	 * @param validator
+	 *            ETag or Last-Modified header of the creative, null if it has none
+	 * @param expires
+	 *            time in milliseconds until the creative may be used without revalidation
+	 */
+	protected static synchronized void put(String url, int targetWidth, int targetHeight, Bitmap bitmap, String validator, long expires) {
+		long size = getSize(bitmap);
+		if (size > MAX_CACHE_SIZE) return;
+
+		// replaces the banner of an older version of the creative
+		Entry oldEntry = cache.put(getKey(url, targetWidth, targetHeight), new Entry(bitmap, validator, expires));
+		if (oldEntry != null) cacheSize -= getSize(oldEntry.bitmap);
+		cacheSize += size;
+
+		Iterator<Map.Entry<String, Entry>> iterator = cache.entrySet().iterator();
+		while (cacheSize > MAX_CACHE_SIZE && iterator.hasNext()) {
+			Map.Entry<String, Entry> eldest = iterator.next();
+			MadUtil.logMessage(null, Log.DEBUG, "Evicting decoded banner ", eldest.getKey());
+			cacheSize -= getSize(eldest.getValue().bitmap);
+			iterator.remove();
+		}
+	}
+
+	protected static synchronized long getCacheSize() {
+		return cacheSize;
+	}
+
+	protected static synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	protected static synchronized long getMissCount() {
+		return missCount;
+	}
+
+	private static String getKey(String url, int targetWidth, int targetHeight) {
+		return url + '@' + targetWidth + 'x' + targetHeight;
+	}
+
+	private static long getSize(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
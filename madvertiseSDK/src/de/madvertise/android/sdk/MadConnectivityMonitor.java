@@ -0,0 +1,215 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process wide connectivity monitor, shared by all ad views. Requests are gated by
+ * {@link #defer(Runnable, long)}:
+ * <ul>
+ * <li>while the device is offline, no request is sent. Every view keeps at most one deferred
+ * fetch and one deferred prefetch, that are run, when the network returns.</li>
+ * <li>on a mobile network, a request waits only while another request of the SDK is in flight, so
+ * it is sent together with the response, while the radio is awake anyway. It never waits longer
+ * than its view allows, i.e. until the next refresh of the view.</li>
+ * </ul>
+ * If no request is in flight, the state of the radio is unknown and a request is sent right away.
+ * Without the ACCESS_NETWORK_STATE permission the state cannot be read and requests are never
+ * deferred.
+ */
+class MadConnectivityMonitor {
+
+	private static final Object LOCK = new Object();
+
+	private static Handler handler = null;
+	private static ConnectivityManager connectivityManager = null;
+
+	private static volatile boolean connected = true;
+	private static volatile boolean mobile = false;
+
+	// requests of the SDK, that were sent and are not finished yet
+	private static final AtomicInteger requestsInFlight = new AtomicInteger();
+
+	// requests, that wait for the network or the radio, each at most once
+	private static final List<Runnable> deferredTasks = new ArrayList<Runnable>();
+	private static volatile boolean hasDeferredTasks = false;
+	// uptime, at which the deferred requests are sent at the latest
+	private static long deferDeadline = Long.MAX_VALUE;
+	// true while the deferred requests are run, they are not deferred again
+	private static boolean runningDeferredTasks = false;
+
+	private static final Runnable runDeferredTasks = new Runnable() {
+		public void run() {
+			runDeferredTasks();
+		}
+	};
+
+	/**
+	 * Starts monitoring the connectivity of the device, only the first call has an effect. Must be
+	 * called on the ui thread.
+	 *
+	 * @param context
+	 *            any context of the application
+	 */
+	protected static void start(Context context) {
+		synchronized (LOCK) {
+			if (handler != null) return;
+			handler = new Handler(Looper.getMainLooper());
+		}
+
+		if (context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_NETWORK_STATE) != PackageManager.PERMISSION_GRANTED) {
+			MadUtil.logMessage(null, Log.DEBUG, "No permission to read the network state, requests are never deferred");
+			return;
+		}
+
+		Context applicationContext = context.getApplicationContext();
+		connectivityManager = (ConnectivityManager) applicationContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (connectivityManager == null) return;
+
+		readNetworkState();
+		BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				boolean wasConnected = connected;
+				readNetworkState();
+				MadUtil.logMessage(null, Log.DEBUG, "Connectivity changed, connected: ", connected);
+
+				if (connected && !wasConnected) {
+					// the radio was just woken up by the new connection
+					runDeferredTasks();
+				}
+			}
+		};
+		applicationContext.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+
+	/**
+	 * Decides, whether a request can be sent now. Must be called on the ui thread. If not, the
+	 * given task is run later on the ui thread, when the network returns, when the requests in
+	 * flight are finished or when the given time is up, whatever comes first.
+	 *
+	 * @param task
+	 *            fetch or prefetch to run later
+	 * @param maxDeferMillis
+	 *            longest time to wait on a mobile network, usually the time until the next refresh
+	 *            of the view
+	 * @return true, if the request must not be sent now
+	 */
+	protected static boolean defer(Runnable task, long maxDeferMillis) {
+		boolean offline = !connected;
+		if (runningDeferredTasks) return false;
+		if (!offline && (!mobile || maxDeferMillis <= 0 || requestsInFlight.get() == 0)) return false;
+
+		synchronized (LOCK) {
+			if (handler == null) return false;
+
+			if (!deferredTasks.contains(task)) {
+				deferredTasks.add(task);
+				hasDeferredTasks = true;
+			}
+			if (!offline) {
+				long deadline = SystemClock.uptimeMillis() + maxDeferMillis;
+				if (deadline < deferDeadline) {
+					deferDeadline = deadline;
+					handler.removeCallbacks(runDeferredTasks);
+					handler.postAtTime(runDeferredTasks, deadline);
+				}
+			}
+		}
+
+		MadUtil.logMessage(null, Log.DEBUG, offline ? "Deferring request while offline" : "Deferring request until the requests in flight are finished");
+		return true;
+	}
+
+	/**
+	 * Removes a deferred task, e.g. when its view is detached
+	 *
+	 * @param task
+	 */
+	protected static void cancel(Runnable task) {
+		synchronized (LOCK) {
+			deferredTasks.remove(task);
+			hasDeferredTasks = !deferredTasks.isEmpty();
+		}
+	}
+
+	/**
+	 * Records a request of the SDK, that is about to be sent. Every call must be followed by a call
+	 * of {@link #onRequestDone()}.
+	 */
+	protected static void onRequestStarted() {
+		requestsInFlight.incrementAndGet();
+	}
+
+	/**
+	 * Records a finished request, successful or not. When the last request in flight is finished,
+	 * the radio is awake and the deferred requests are sent now. Called on the thread, that sent the
+	 * request.
+	 */
+	protected static void onRequestDone() {
+		if (requestsInFlight.decrementAndGet() == 0 && hasDeferredTasks && connected) {
+			synchronized (LOCK) {
+				if (handler != null) handler.post(runDeferredTasks);
+			}
+		}
+	}
+
+	private static void readNetworkState() {
+		NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+		connected = networkInfo != null && networkInfo.isConnected();
+		mobile = connected && networkInfo.getType() == ConnectivityManager.TYPE_MOBILE;
+	}
+
+	// executed in the ui main thread
+	private static void runDeferredTasks() {
+		Runnable[] tasks;
+		synchronized (LOCK) {
+			handler.removeCallbacks(runDeferredTasks);
+			deferDeadline = Long.MAX_VALUE;
+			if (!connected || deferredTasks.isEmpty()) return;
+
+			tasks = deferredTasks.toArray(new Runnable[deferredTasks.size()]);
+			deferredTasks.clear();
+			hasDeferredTasks = false;
+		}
+
+		MadUtil.logMessage(null, Log.DEBUG, "Running deferred requests: ", tasks.length);
+		// the tasks are batched, if the views use batch requests
+		runningDeferredTasks = true;
+		try {
+			for (int i = 0; i < tasks.length; i++) {
+				tasks[i].run();
+			}
+		} finally {
+			runningDeferredTasks = false;
+		}
+	}
+}
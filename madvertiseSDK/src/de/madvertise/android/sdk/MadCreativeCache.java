@@ -0,0 +1,378 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Size bounded disk cache for banner creatives, keyed by the banner url. Each creative is stored
+ * in a single file together with its validators (ETag, Last-Modified) and expiry time, so a
+ * repeated creative is served from disk or revalidated with a conditional request. Files are
+ * written to a temporary file and renamed, a crash never leaves a partially written creative
+ * behind. The least recently used creatives are evicted, when the cache exceeds its maximum size.
+ * The cache lives in the application's cache directory and survives process restarts.
+ */
+class MadCreativeCache {
+
+	private static final String CACHE_DIRECTORY = "madvertise_creatives";
+	private static final String FILE_SUFFIX = ".creative";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int FILE_FORMAT_VERSION = 1;
+	private static final long MAX_CACHE_SIZE = 2 * 1024 * 1024;
+	// lifetime of a creative without Cache-Control max-age or Expires header, short, so a changed
+	// creative is still picked up within a few refreshes
+	private static final long HEURISTIC_FRESHNESS = 5 * 60 * 1000;
+
+	private static MadCreativeCache instance = null;
+
+	private final File directory;
+
+	// file name -> file size, in access order, the eldest entry is evicted first
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long totalSize = 0;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong revalidationCount = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	/**
+	 * Creative read from the cache
+	 */
+	static class CachedCreative {
+		protected final String url;
+		protected final byte[] data;
+		protected final String eTag;
+		protected final String lastModified;
+		protected final long expires;
+
+		private CachedCreative(String url, byte[] data, String eTag, String lastModified, long expires) {
+			this.url = url;
+			this.data = data;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return true, if the creative can be used without revalidation
+		 */
+		protected boolean isFresh() {
+			return System.currentTimeMillis() < expires;
+		}
+	}
+
+	/**
+	 * Returns the process wide cache
+	 *
+	 * @param context
+	 *            any context of the application
+	 * @return the creative cache
+	 */
+	protected static synchronized MadCreativeCache getInstance(Context context) {
+		if (instance == null) {
+			instance = new MadCreativeCache(new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY));
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a cache in the given directory and reads the creatives, that are stored there already
+	 *
+	 * @param directory
+	 */
+	MadCreativeCache(File directory) {
+		this.directory = directory;
+		if (!directory.exists() && !directory.mkdirs()) {
+			MadUtil.logMessage(null, Log.DEBUG, "Could not create creative cache directory");
+		}
+		rebuildIndex();
+	}
+
+	/**
+	 * Reads the creatives of a previous process, oldest first, and removes left over temp files.
+	 */
+	private void rebuildIndex() {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File file1, File file2) {
+				long lastModified1 = file1.lastModified();
+				long lastModified2 = file2.lastModified();
+				return lastModified1 < lastModified2 ? -1 : (lastModified1 == lastModified2 ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.endsWith(FILE_SUFFIX)) {
+				index.put(name, Long.valueOf(files[i].length()));
+				totalSize += files[i].length();
+			} else if (name.endsWith(TEMP_SUFFIX)) {
+				files[i].delete();
+			}
+		}
+		if (MadUtil.isLoggable(Log.DEBUG)) MadUtil.logMessage(null, Log.DEBUG, "Creative cache contains " + index.size() + " files, " + totalSize + " bytes");
+	}
+
+	/**
+	 * Reads a creative from the cache. Does not check, if the creative is still fresh. The file is
+	 * read without holding the lock of the cache, files are only replaced by renaming, so a
+	 * reader never sees a partially written creative.
+	 *
+	 * @param url
+	 *            banner url
+	 * @return cached creative or null
+	 */
+	protected CachedCreative get(String url) {
+		String fileName = getFileName(url);
+		synchronized (this) {
+			if (!index.containsKey(fileName)) return null;
+		}
+
+		File file = new File(directory, fileName);
+		DataInputStream inputStream = null;
+		try {
+			inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), MadUtil.STREAM_BUFFER_SIZE));
+			if (inputStream.readInt() != FILE_FORMAT_VERSION) {
+				throw new IOException("Unknown cache file format");
+			}
+			String cachedUrl = inputStream.readUTF();
+			String eTag = readOptionalString(inputStream);
+			String lastModified = readOptionalString(inputStream);
+			long expires = inputStream.readLong();
+			int length = inputStream.readInt();
+			if (length < 0 || length > MadUtil.MAX_BANNER_SIZE) {
+				throw new IOException("Invalid creative length " + length);
+			}
+			byte[] data = new byte[length];
+			inputStream.readFully(data);
+
+			if (!url.equals(cachedUrl)) return null;
+
+			// remember the access across process restarts
+			file.setLastModified(System.currentTimeMillis());
+			return new CachedCreative(url, data, eTag, lastModified, expires);
+		} catch (IOException e) {
+			MadUtil.logMessage(null, Log.DEBUG, "Could not read cached creative, removing it: ", e.getMessage());
+			synchronized (this) {
+				remove(fileName);
+			}
+			return null;
+		} finally {
+			if (inputStream != null) {
+				try {
+					inputStream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores a creative, replacing an older version of the same url
+	 *
+	 * @param url
+	 *            banner url
+	 * @param data
+	 *            encoded creative
+	 * @param eTag
+	 *            ETag header of the response or null
+	 * @param lastModified
+	 *            Last-Modified header of the response or null
+	 * @param expires
+	 *            time in milliseconds until the creative may be used without revalidation
+	 */
+	protected synchronized void put(String url, byte[] data, String eTag, String lastModified, long expires) {
+		String fileName = getFileName(url);
+		File tempFile = new File(directory, fileName + TEMP_SUFFIX);
+		File file = new File(directory, fileName);
+
+		DataOutputStream outputStream = null;
+		try {
+			outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), MadUtil.STREAM_BUFFER_SIZE));
+			outputStream.writeInt(FILE_FORMAT_VERSION);
+			outputStream.writeUTF(url);
+			writeOptionalString(outputStream, eTag);
+			writeOptionalString(outputStream, lastModified);
+			outputStream.writeLong(expires);
+			outputStream.writeInt(data.length);
+			outputStream.write(data);
+			outputStream.close();
+			outputStream = null;
+
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tempFile);
+			}
+		} catch (IOException e) {
+			MadUtil.logMessage(null, Log.DEBUG, "Could not write creative to cache: ", e.getMessage());
+			tempFile.delete();
+			return;
+		} finally {
+			if (outputStream != null) {
+				try {
+					outputStream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		Long oldSize = index.put(fileName, Long.valueOf(file.length()));
+		if (oldSize != null) totalSize -= oldSize.longValue();
+		totalSize += file.length();
+		trimToSize();
+	}
+
+	/**
+	 * Records a creative, that was confirmed by the server (304 Not Modified), and stores its new
+	 * expiry time.
+	 *
+	 * @param creative
+	 * @param expires
+	 */
+	protected void revalidated(CachedCreative creative, long expires) {
+		revalidationCount.incrementAndGet();
+		bytesSaved.addAndGet(creative.data.length);
+		if (expires != creative.expires) {
+			put(creative.url, creative.data, creative.eTag, creative.lastModified, expires);
+		}
+	}
+
+	/**
+	 * Records a creative, that was served from the cache without any request.
+	 *
+	 * @param creative
+	 */
+	protected void hit(CachedCreative creative) {
+		hitCount.incrementAndGet();
+		bytesSaved.addAndGet(creative.data.length);
+	}
+
+	/**
+	 * Records a creative, that had to be downloaded.
+	 */
+	protected void miss() {
+		missCount.incrementAndGet();
+	}
+
+	protected long getHitCount() {
+		return hitCount.get();
+	}
+
+	protected long getMissCount() {
+		return missCount.get();
+	}
+
+	protected long getRevalidationCount() {
+		return revalidationCount.get();
+	}
+
+	protected long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	protected synchronized long getSize() {
+		return totalSize;
+	}
+
+	/**
+	 * Computes until when a response may be used without revalidation. A response without explicit
+	 * expiry is fresh for a few minutes, like browsers do heuristically.
+	 *
+	 * @param cacheControl
+	 *            Cache-Control header or null
+	 * @param expires
+	 *            Expires header or null
+	 * @return expiry time in milliseconds, 0 if the response must always be revalidated
+	 */
+	protected static long getExpiryTime(String cacheControl, String expires) {
+		if (cacheControl != null) {
+			String[] directives = cacheControl.split(",");
+			for (int i = 0; i < directives.length; i++) {
+				String directive = directives[i].trim().toLowerCase();
+				if (directive.equals("no-cache") || directive.equals("no-store")) {
+					return 0;
+				}
+				if (directive.startsWith("max-age=")) {
+					try {
+						return System.currentTimeMillis() + Long.parseLong(directive.substring(8)) * 1000;
+					} catch (NumberFormatException e) {
+						return 0;
+					}
+				}
+			}
+		}
+
+		if (expires != null) {
+			try {
+				return DateUtils.parseDate(expires).getTime();
+			} catch (DateParseException e) {
+				return 0;
+			}
+		}
+		return System.currentTimeMillis() + HEURISTIC_FRESHNESS;
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+		while (totalSize > MAX_CACHE_SIZE && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			MadUtil.logMessage(null, Log.DEBUG, "Evicting creative ", eldest.getKey());
+			new File(directory, eldest.getKey()).delete();
+			totalSize -= eldest.getValue().longValue();
+			iterator.remove();
+		}
+	}
+
+	private void remove(String fileName) {
+		Long size = index.remove(fileName);
+		if (size != null) totalSize -= size.longValue();
+		new File(directory, fileName).delete();
+	}
+
+	private static String getFileName(String url) {
+		return MadUtil.getMD5Hash(url) + FILE_SUFFIX;
+	}
+
+	private static String readOptionalString(DataInputStream inputStream) throws IOException {
+		return inputStream.readBoolean() ? inputStream.readUTF() : null;
+	}
+
+	private static void writeOptionalString(DataOutputStream outputStream, String value) throws IOException {
+		outputStream.writeBoolean(value != null);
+		if (value != null) outputStream.writeUTF(value);
+	}
+}
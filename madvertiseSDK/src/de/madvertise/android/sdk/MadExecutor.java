@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Shared, bounded executor for all network work of the SDK (ad requests, banner downloads).
+ * The number of threads does not grow with the number of ad views on the screen. Tasks, that
+ * do not fit into the queue, are rejected and counted.
+ * <p>
+ * Tasks can be delayed, e.g. the retry of a failed request. A delayed task waits in the queue, it
+ * does not block a thread.
+ */
+class MadExecutor {
+
+	private static final int POOL_SIZE = 2;
+	private static final int QUEUE_CAPACITY = 16;
+
+	private static final AtomicLong rejectedTasks = new AtomicLong();
+
+	private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "MadExecutor #" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	// the queue of a scheduled executor is unbounded, the capacity is checked before a task is queued
+	private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(POOL_SIZE, THREAD_FACTORY) {
+		@Override
+		protected void afterExecute(Runnable runnable, Throwable throwable) {
+			super.afterExecute(runnable, throwable);
+			// tasks run wrapped in futures, which catch their exceptions. An exception is passed
+			// on, like in a thread of its own.
+			try {
+				((Future<?>) runnable).get();
+			} catch (ExecutionException e) {
+				Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e.getCause());
+			} catch (CancellationException e) {
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	};
+
+	/**
+	 * Queues a task for background execution.
+	 *
+	 * @param task
+	 *            task to run
+	 * @return true, if the task was accepted, false if the queue is full
+	 */
+	protected static boolean execute(Runnable task) {
+		return schedule(task, 0);
+	}
+
+	/**
+	 * Queues a task for background execution after a delay.
+	 *
+	 * @param task
+	 *            task to run
+	 * @param delayMillis
+	 *            time in milliseconds, the task waits in the queue
+	 * @return true, if the task was accepted, false if the queue is full
+	 */
+	protected static boolean schedule(Runnable task, long delayMillis) {
+		synchronized (EXECUTOR) {
+			if (EXECUTOR.getQueue().size() >= QUEUE_CAPACITY) {
+				rejectedTasks.incrementAndGet();
+				if (MadUtil.isLoggable(Log.DEBUG)) MadUtil.logMessage(null, Log.DEBUG, "Rejected background task, executor: ", getReport());
+				return false;
+			}
+			EXECUTOR.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+			return true;
+		}
+	}
+
+	/**
+	 * @return number of tasks waiting for a free thread or for their delay
+	 */
+	protected static int getQueueDepth() {
+		return EXECUTOR.getQueue().size();
+	}
+
+	/**
+	 * @return number of tasks, that are executed right now
+	 */
+	protected static int getActiveCount() {
+		return EXECUTOR.getActiveCount();
+	}
+
+	/**
+	 * @return number of threads in the pool, never more than {@link #POOL_SIZE}
+	 */
+	protected static int getPoolSize() {
+		return EXECUTOR.getPoolSize();
+	}
+
+	/**
+	 * @return number of tasks rejected since the process started
+	 */
+	protected static long getRejectedCount() {
+		return rejectedTasks.get();
+	}
+
+	/**
+	 * @return pool size, active tasks, queue depth and rejected tasks in one line
+	 */
+	protected static String getReport() {
+		return "pool " + getPoolSize() + "/" + POOL_SIZE + ", active " + getActiveCount() + ", queued " + getQueueDepth() + "/"
+				+ QUEUE_CAPACITY + ", rejected " + getRejectedCount();
+	}
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Incremental decoder for gif87a and gif89a images. Frames are read one at a time from a stream
+ * and composed into a single ARGB canvas, so only the frame, that is shown, is held in memory,
+ * no matter how many frames the gif has. All buffers (canvas, disposal backup, color tables,
+ * pixel indices and LZW tables) are allocated once per image size and reused for every frame and
+ * every loop of the animation.
+ * <p>
+ * The decoder does not depend on android classes and reports all problems with an
+ * {@link IOException}.
+ */
+class MadGifDecoder {
+
+	// larger banners are not expected and would use an unpredictable amount of memory
+	private static final int MAX_PIXELS = 1024 * 1024;
+	private static final int MAX_LZW_CODES = 4096;
+
+	// frames without a delay (or a delay of 10 ms) are shown for 100 ms, as browsers do
+	private static final int DEFAULT_FRAME_DELAY = 100;
+
+	private static final int DISPOSE_BACKGROUND = 2;
+	private static final int DISPOSE_PREVIOUS = 3;
+
+	private InputStream inputStream;
+
+	private int width;
+	private int height;
+	private boolean hasGlobalColorTable;
+
+	// reused buffers
+	private int[] canvas;
+	private int[] previousCanvas;
+	private byte[] indices;
+	private final int[] globalColorTable = new int[256];
+	private final int[] localColorTable = new int[256];
+	private final short[] prefix = new short[MAX_LZW_CODES];
+	private final byte[] suffix = new byte[MAX_LZW_CODES];
+	private final byte[] pixelStack = new byte[MAX_LZW_CODES + 1];
+	private final byte[] block = new byte[256];
+
+	// graphic control extension of the next frame
+	private int delay;
+	private int disposal;
+	private boolean transparency;
+	private int transparentIndex;
+
+	// disposal of the last frame
+	private int lastDisposal;
+	private int lastX, lastY, lastWidth, lastHeight;
+
+	private int frameDelay;
+	private int frameCount;
+
+	// current data sub-block while reading image data
+	private int blockSize;
+	private int blockPosition;
+	private boolean blockTerminated;
+	// the stream ended within the image data of the last frame
+	private boolean truncated;
+
+	/**
+	 * Reads the header of a gif. Frames are read with {@link #readFrame()}.
+	 *
+	 * @param inputStream
+	 *            stream of the gif, should be buffered
+	 * @throws IOException
+	 *             if the stream cannot be read or is no gif
+	 */
+	MadGifDecoder(InputStream inputStream) throws IOException {
+		start(inputStream);
+	}
+
+	/**
+	 * Starts the animation over with a new stream of the same gif. The buffers are reused, if the
+	 * size of the gif did not change.
+	 *
+	 * @param inputStream
+	 *            stream of the gif, should be buffered
+	 * @throws IOException
+	 *             if the stream cannot be read or is no gif
+	 */
+	protected void start(InputStream inputStream) throws IOException {
+		this.inputStream = inputStream;
+		frameCount = 0;
+		lastDisposal = 0;
+		truncated = false;
+		resetControl();
+		readHeader();
+	}
+
+	/**
+	 * Decodes the next frame onto the canvas.
+	 *
+	 * @return true, if a frame was read, false at the end of the gif
+	 * @throws IOException
+	 *             if the stream cannot be read or the gif is invalid
+	 */
+	protected boolean readFrame() throws IOException {
+		if (truncated) return false;
+		while (true) {
+			int code = read();
+			if (code == 0x2C) {
+				readImage();
+				return true;
+			} else if (code == 0x21) {
+				readExtension();
+			} else if (code == 0x3B) {
+				return false;
+			} else if (code != 0x00) {
+				// some encoders pad with zeros, anything else is broken
+				throw new IOException("Invalid gif block: " + code);
+			}
+		}
+	}
+
+	/**
+	 * @return the composed image after the last frame, one ARGB int per pixel, row by row; the
+	 *         array is reused for the next frame
+	 */
+	protected int[] getPixels() {
+		return canvas;
+	}
+
+	/**
+	 * @return time in milliseconds, the last frame is shown
+	 */
+	protected int getFrameDelay() {
+		return frameDelay;
+	}
+
+	/**
+	 * @return number of frames read since the last start
+	 */
+	protected int getFrameCount() {
+		return frameCount;
+	}
+
+	protected int getWidth() {
+		return width;
+	}
+
+	protected int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Checks, whether an image is a gif with more than one frame. Only the block structure is
+	 * read, no frame is decoded.
+	 *
+	 * @param data
+	 *            encoded image
+	 * @return true, if the image is an animated gif
+	 */
+	protected static boolean isAnimated(byte[] data) {
+		if (data.length < 13 || data[0] != 'G' || data[1] != 'I' || data[2] != 'F') return false;
+
+		int packed = data[10] & 0xff;
+		int position = 13;
+		if ((packed & 0x80) != 0) position += 3 * (2 << (packed & 0x07));
+
+		int frames = 0;
+		while (position < data.length) {
+			int code = data[position++] & 0xff;
+			if (code == 0x2C) {
+				if (++frames > 1) return true;
+				if (position + 9 > data.length) return false;
+				// position, size and packed fields
+				int imagePacked = data[position + 8] & 0xff;
+				position += 9;
+				if ((imagePacked & 0x80) != 0) position += 3 * (2 << (imagePacked & 0x07));
+				// LZW code size
+				position = skipSubBlocks(data, position + 1);
+			} else if (code == 0x21) {
+				// label
+				position = skipSubBlocks(data, position + 1);
+			} else if (code != 0x00) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private void readHeader() throws IOException {
+		if (read() != 'G' || read() != 'I' || read() != 'F') {
+			throw new IOException("Not a gif");
+		}
+		// version, 87a or 89a
+		read();
+		read();
+		read();
+
+		int newWidth = readShort();
+		int newHeight = readShort();
+		if (newWidth <= 0 || newHeight <= 0 || (long) newWidth * newHeight > MAX_PIXELS) {
+			throw new IOException("Unsupported gif size " + newWidth + "x" + newHeight);
+		}
+		int packed = read();
+		// background color index and pixel aspect ratio are ignored, the background is transparent
+		read();
+		read();
+
+		hasGlobalColorTable = (packed & 0x80) != 0;
+		if (hasGlobalColorTable) {
+			readColorTable(globalColorTable, 2 << (packed & 0x07));
+		}
+
+		if (canvas == null || newWidth != width || newHeight != height) {
+			width = newWidth;
+			height = newHeight;
+			canvas = new int[width * height];
+			previousCanvas = null;
+			indices = new byte[width * height];
+		} else {
+			clear(canvas, 0, 0, width, height);
+		}
+	}
+
+	private void readColorTable(int[] table, int size) throws IOException {
+		for (int i = 0; i < size; i++) {
+			int r = read();
+			int g = read();
+			int b = read();
+			table[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+		}
+		for (int i = size; i < table.length; i++) {
+			table[i] = 0xff000000;
+		}
+	}
+
+	private void readExtension() throws IOException {
+		int label = read();
+		if (label == 0xF9) {
+			// graphic control extension
+			read();
+			int packed = read();
+			disposal = (packed >> 2) & 0x07;
+			transparency = (packed & 0x01) != 0;
+			delay = readShort() * 10;
+			transparentIndex = read();
+		}
+		skipSubBlocks();
+	}
+
+	private void readImage() throws IOException {
+		int x = readShort();
+		int y = readShort();
+		int frameWidth = readShort();
+		int frameHeight = readShort();
+		int packed = read();
+
+		int[] colorTable = globalColorTable;
+		if ((packed & 0x80) != 0) {
+			readColorTable(localColorTable, 2 << (packed & 0x07));
+			colorTable = localColorTable;
+		} else if (!hasGlobalColorTable) {
+			throw new IOException("Gif frame without color table");
+		}
+
+		// sizes are up to 0xFFFF, so the product may exceed an int
+		if ((long) frameWidth * frameHeight > MAX_PIXELS) throw new IOException("Gif frame too large");
+		int pixelCount = frameWidth * frameHeight;
+		if (pixelCount > indices.length) indices = new byte[pixelCount];
+		decodeImageData(pixelCount);
+
+		disposeLastFrame();
+		if (disposal == DISPOSE_PREVIOUS) {
+			if (previousCanvas == null) previousCanvas = new int[canvas.length];
+			System.arraycopy(canvas, 0, previousCanvas, 0, canvas.length);
+		}
+		drawFrame(colorTable, x, y, frameWidth, frameHeight, (packed & 0x40) != 0);
+
+		frameDelay = delay > 10 ? delay : DEFAULT_FRAME_DELAY;
+		lastDisposal = disposal;
+		lastX = x;
+		lastY = y;
+		lastWidth = frameWidth;
+		lastHeight = frameHeight;
+		frameCount++;
+		resetControl();
+	}
+
+	private void disposeLastFrame() {
+		if (lastDisposal == DISPOSE_BACKGROUND) {
+			clear(canvas, lastX, lastY, lastWidth, lastHeight);
+		} else if (lastDisposal == DISPOSE_PREVIOUS && previousCanvas != null) {
+			System.arraycopy(previousCanvas, 0, canvas, 0, canvas.length);
+		}
+	}
+
+	private void drawFrame(int[] colorTable, int x, int y, int frameWidth, int frameHeight, boolean interlaced) {
+		int pass = 0;
+		int step = interlaced ? 8 : 1;
+		int row = 0;
+		for (int i = 0; i < frameHeight; i++) {
+			int canvasRow = y + row;
+			if (canvasRow < height) {
+				int source = i * frameWidth;
+				int target = canvasRow * width + x;
+				int columns = Math.min(frameWidth, width - x);
+				for (int column = 0; column < columns; column++) {
+					int index = indices[source + column] & 0xff;
+					if (!transparency || index != transparentIndex) {
+						canvas[target + column] = colorTable[index];
+					}
+				}
+			}
+
+			row += step;
+			while (interlaced && row >= frameHeight && pass < 3) {
+				// rows 0, 8, 16, ..., then 4, 12, ..., then 2, 6, ..., then 1, 3, ...
+				pass++;
+				row = 8 >> pass;
+				step = row * 2;
+			}
+		}
+	}
+
+	/**
+	 * Decodes the LZW compressed pixel indices of a frame into {@link #indices}
+	 */
+	private void decodeImageData(int pixelCount) throws IOException {
+		int minimumCodeSize = read();
+		if (minimumCodeSize < 2 || minimumCodeSize > 8) throw new IOException("Invalid LZW code size");
+
+		int clear = 1 << minimumCodeSize;
+		int endOfInformation = clear + 1;
+		int available = clear + 2;
+		int codeSize = minimumCodeSize + 1;
+		int codeMask = (1 << codeSize) - 1;
+		int oldCode = -1;
+		int first = 0;
+		for (int code = 0; code < clear; code++) {
+			prefix[code] = 0;
+			suffix[code] = (byte) code;
+		}
+
+		blockSize = 0;
+		blockPosition = 0;
+		blockTerminated = false;
+
+		int datum = 0;
+		int bits = 0;
+		int top = 0;
+		int pixel = 0;
+		while (pixel < pixelCount) {
+			if (top == 0) {
+				if (bits < codeSize) {
+					int data = readDataByte();
+					if (data < 0) break;
+					datum |= data << bits;
+					bits += 8;
+					continue;
+				}
+
+				int code = datum & codeMask;
+				datum >>= codeSize;
+				bits -= codeSize;
+
+				if (code == clear) {
+					codeSize = minimumCodeSize + 1;
+					codeMask = (1 << codeSize) - 1;
+					available = clear + 2;
+					oldCode = -1;
+					continue;
+				}
+				if (code > available || code == endOfInformation) break;
+				if (oldCode == -1) {
+					if (code >= clear) break;
+					pixelStack[top++] = suffix[code];
+					oldCode = code;
+					first = code;
+					continue;
+				}
+
+				int inCode = code;
+				if (code == available) {
+					pixelStack[top++] = (byte) first;
+					code = oldCode;
+				}
+				while (code > clear) {
+					pixelStack[top++] = suffix[code];
+					code = prefix[code];
+				}
+				first = suffix[code] & 0xff;
+				pixelStack[top++] = (byte) first;
+
+				if (available < MAX_LZW_CODES) {
+					prefix[available] = (short) oldCode;
+					suffix[available] = (byte) first;
+					available++;
+					if ((available & codeMask) == 0 && available < MAX_LZW_CODES) {
+						codeSize++;
+						codeMask += available;
+					}
+				}
+				oldCode = inCode;
+			}
+
+			indices[pixel++] = pixelStack[--top];
+		}
+
+		// missing pixels of a truncated frame are drawn with index 0
+		for (int i = pixel; i < pixelCount; i++) {
+			indices[i] = 0;
+		}
+
+		if (!blockTerminated) {
+			try {
+				skipSubBlocks();
+			} catch (EOFException e) {
+				truncated = true;
+			}
+		}
+	}
+
+	/**
+	 * Reads the next byte of the image data sub-blocks
+	 *
+	 * @return the byte or -1 at the block terminator
+	 */
+	private int readDataByte() throws IOException {
+		if (blockTerminated) return -1;
+		if (blockPosition == blockSize) {
+			try {
+				blockSize = read();
+				blockPosition = 0;
+				if (blockSize > 0) readFully(block, blockSize);
+			} catch (EOFException e) {
+				// show the part of a truncated gif, that could be read, like browsers do
+				truncated = true;
+				blockSize = 0;
+			}
+			if (blockSize == 0) {
+				blockTerminated = true;
+				return -1;
+			}
+		}
+		return block[blockPosition++] & 0xff;
+	}
+
+	private static int skipSubBlocks(byte[] data, int position) {
+		while (position < data.length) {
+			int size = data[position++] & 0xff;
+			if (size == 0) break;
+			position += size;
+		}
+		return position;
+	}
+
+	private void skipSubBlocks() throws IOException {
+		int size;
+		while ((size = read()) > 0) {
+			readFully(block, size);
+		}
+	}
+
+	private void resetControl() {
+		delay = 0;
+		disposal = 0;
+		transparency = false;
+		transparentIndex = 0;
+	}
+
+	private static void clear(int[] pixels, int x, int y, int clearWidth, int clearHeight, int canvasWidth) {
+		for (int row = y; row < y + clearHeight; row++) {
+			int start = row * canvasWidth + x;
+			for (int i = start; i < start + clearWidth; i++) {
+				pixels[i] = 0;
+			}
+		}
+	}
+
+	private void clear(int[] pixels, int x, int y, int clearWidth, int clearHeight) {
+		clear(pixels, x, y, Math.min(clearWidth, width - x), Math.min(clearHeight, height - y), width);
+	}
+
+	private int readShort() throws IOException {
+		return read() | (read() << 8);
+	}
+
+	private int read() throws IOException {
+		int value = inputStream.read();
+		if (value < 0) throw new EOFException("Unexpected end of gif");
+		return value;
+	}
+
+	private void readFully(byte[] buffer, int length) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			int count = inputStream.read(buffer, offset, length - offset);
+			if (count < 0) throw new EOFException("Unexpected end of gif");
+			offset += count;
+		}
+	}
+}
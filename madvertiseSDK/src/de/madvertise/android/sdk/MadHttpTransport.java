@@ -0,0 +1,227 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+/**
+ * Process wide http transport for the madvertise SDK. All ad requests and banner downloads
+ * share one client with a thread safe connection pool, so subsequent requests to the ad server
+ * reuse kept-alive connections instead of paying for a new DNS lookup and TCP connect.
+ * <p>
+ * Every request accepts gzip compressed responses, compressed bodies are inflated transparently
+ * while they are read.
+ */
+class MadHttpTransport {
+
+	private static final int MAX_TOTAL_CONNECTIONS = 8;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+	private static final int SOCKET_BUFFER_SIZE = 8192;
+	private static final long CONNECTION_POOL_TIMEOUT = 1000;
+	private static final long KEEP_ALIVE_DEFAULT = 30000;
+	private static final long IDLE_CONNECTION_TIMEOUT = 60000;
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String GZIP = "gzip";
+
+	private static DefaultHttpClient httpClient = null;
+
+	/**
+	 * Returns the shared http client, creating it on first use.
+	 *
+	 * @return thread safe http client
+	 */
+	protected static synchronized HttpClient getHttpClient() {
+		if (httpClient == null) {
+			httpClient = createHttpClient();
+		}
+		return httpClient;
+	}
+
+	/**
+	 * Closes idle connections and releases the shared client. The next call to
+	 * {@link #getHttpClient()} creates a fresh connection pool.
+	 */
+	protected static synchronized void shutdown() {
+		if (httpClient != null) {
+			MadUtil.logMessage(null, Log.DEBUG, "Shutting down http transport");
+			httpClient.getConnectionManager().shutdown();
+			httpClient = null;
+		}
+	}
+
+	/**
+	 * Drops pooled connections, that were not used for a while, e.g. before the radio goes idle.
+	 */
+	protected static synchronized void closeIdleConnections() {
+		if (httpClient != null) {
+			ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+			connectionManager.closeExpiredConnections();
+			connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Consumes the remaining body of a response, so its connection goes back to the pool.
+	 *
+	 * @param response
+	 *            response, may be null
+	 */
+	protected static void releaseResponse(HttpResponse response) {
+		if (response == null) return;
+
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				MadUtil.logMessage(null, Log.DEBUG, "Could not release http connection");
+			}
+		}
+	}
+
+	private static DefaultHttpClient createHttpClient() {
+		MadUtil.logMessage(null, Log.DEBUG, "Creating shared http transport");
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, MadUtil.ENCODING);
+		HttpProtocolParams.setUseExpectContinue(params, false);
+
+		// requests override these timeouts with their own budget (see MadRequestBudget)
+		HttpConnectionParams.setConnectionTimeout(params, (int) MadRequestBudget.INITIAL_CONNECT_MILLIS);
+		HttpConnectionParams.setSoTimeout(params, (int) MadRequestBudget.INITIAL_FIRST_BYTE_MILLIS);
+		HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		// reused connections may have been closed by the server in the meantime
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+		ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+		ConnManagerParams.setTimeout(params, CONNECTION_POOL_TIMEOUT);
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		// measures DNS lookup and connect of new connections, also for the connect timeouts
+		ThreadSafeClientConnManager connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry) {
+			@Override
+			protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemes) {
+				return new DefaultClientConnectionOperator(schemes) {
+					@Override
+					public void openConnection(OperatedClientConnection connection, HttpHost target, InetAddress local,
+							HttpContext context, HttpParams params) throws IOException {
+						long start = System.nanoTime();
+						super.openConnection(connection, target, local, context, params);
+						MadRequestBudget.onConnected(MadLatencyTracker.record(MadView.LatencyPhase.CONNECT, start));
+					}
+				};
+			}
+		};
+		DefaultHttpClient client = new DefaultHttpClient(connectionManager, params);
+
+		// keep connections alive as long as the server allows it, or a reasonable default otherwise
+		client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : KEEP_ALIVE_DEFAULT;
+			}
+		});
+
+		client.addRequestInterceptor(new HttpRequestInterceptor() {
+			public void process(HttpRequest request, HttpContext context) {
+				if (!request.containsHeader(ACCEPT_ENCODING)) {
+					request.addHeader(ACCEPT_ENCODING, GZIP);
+				}
+			}
+		});
+		client.addResponseInterceptor(new HttpResponseInterceptor() {
+			public void process(HttpResponse response, HttpContext context) {
+				HttpEntity entity = response.getEntity();
+				if (entity == null) return;
+
+				Header contentEncoding = entity.getContentEncoding();
+				if (contentEncoding != null && GZIP.equalsIgnoreCase(contentEncoding.getValue())) {
+					response.setEntity(new GzipDecompressingEntity(entity));
+				}
+			}
+		});
+
+		return client;
+	}
+
+	/**
+	 * Inflates a gzip compressed entity while it is read. The length of the inflated content is
+	 * unknown.
+	 */
+	private static class GzipDecompressingEntity extends HttpEntityWrapper {
+
+		private GzipDecompressingEntity(HttpEntity entity) {
+			super(entity);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in microseconds. Every power of two is split into
+ * {@link #SUB_BUCKETS} linear buckets, so a percentile is accurate to 12.5 %, from 1 microsecond
+ * up to more than an hour. Recording only increments atomic counters, it neither locks nor
+ * allocates.
+ */
+class MadLatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 32;
+	private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration
+	 *
+	 * @param micros
+	 *            duration in microseconds, negative values are recorded as 0
+	 */
+	protected void record(long micros) {
+		if (micros < 0) micros = 0;
+
+		buckets.incrementAndGet(getBucket(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+
+		long currentMax;
+		while (micros > (currentMax = max.get())) {
+			if (max.compareAndSet(currentMax, micros)) break;
+		}
+	}
+
+	/**
+	 * Returns a percentile. Concurrent recordings may or may not be included.
+	 *
+	 * @param percentile
+	 *            0 to 100, e.g. 95
+	 * @return upper bound of the bucket, that contains the percentile, in microseconds; 0 if
+	 *         nothing was recorded
+	 */
+	protected long getPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			total += buckets.get(i);
+		}
+		if (total == 0) return 0;
+
+		long rank = (long) Math.ceil(total * percentile / 100);
+		if (rank < 1) rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				// the last bucket collects all longer durations
+				return i == BUCKET_COUNT - 1 ? max.get() : Math.min(getUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	protected long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return mean duration in microseconds, 0 if nothing was recorded
+	 */
+	protected long getMean() {
+		long currentCount = count.get();
+		return currentCount > 0 ? sum.get() / currentCount : 0;
+	}
+
+	protected long getMax() {
+		return max.get();
+	}
+
+	private static int getBucket(long micros) {
+		if (micros < SUB_BUCKETS) return (int) micros;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+/**
+ * Process wide latency measurements of the ad pipeline. Every phase of a refresh (see
+ * {@link MadView.LatencyPhase}) is recorded into its own {@link MadLatencyHistogram} and passed to
+ * the latency listener, if one is set. A measurement is taken like this:
+ *
+ * <pre>
+ * long start = System.nanoTime();
+ * ...
+ * MadLatencyTracker.record(MadView.LatencyPhase.PARSE, start);
+ * </pre>
+ *
+ * Recording neither locks nor allocates, so it does not change what it measures.
+ */
+class MadLatencyTracker {
+
+	private static final MadView.LatencyPhase[] PHASES = MadView.LatencyPhase.values();
+	private static final MadLatencyHistogram[] histograms = new MadLatencyHistogram[PHASES.length];
+
+	static {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new MadLatencyHistogram();
+		}
+	}
+
+	private static volatile MadView.MadLatencyListener listener = null;
+
+	/**
+	 * Records the duration of a phase, that started at the given time
+	 *
+	 * @param phase
+	 * @param startNanos
+	 *            start of the phase from {@link System#nanoTime()}
+	 * @return the duration in microseconds
+	 */
+	protected static long record(MadView.LatencyPhase phase, long startNanos) {
+		long micros = (System.nanoTime() - startNanos) / 1000;
+		histograms[phase.ordinal()].record(micros);
+
+		MadView.MadLatencyListener currentListener = listener;
+		if (currentListener != null) {
+			currentListener.onLatencyMeasured(phase, micros);
+		}
+		return micros;
+	}
+
+	protected static void setListener(MadView.MadLatencyListener newListener) {
+		listener = newListener;
+	}
+
+	protected static MadLatencyHistogram getHistogram(MadView.LatencyPhase phase) {
+		return histograms[phase.ordinal()];
+	}
+
+	/**
+	 * @return one line per phase with count, mean, p50, p95, p99 and max in microseconds
+	 */
+	protected static String getReport() {
+		StringBuilder report = new StringBuilder(PHASES.length * 80);
+		report.append("phase count mean p50 p95 p99 max (microseconds)\n");
+		for (int i = 0; i < PHASES.length; i++) {
+			MadLatencyHistogram histogram = histograms[i];
+			report.append(PHASES[i].name().toLowerCase()).append(' ')
+					.append(histogram.getCount()).append(' ')
+					.append(histogram.getMean()).append(' ')
+					.append(histogram.getPercentile(50)).append(' ')
+					.append(histogram.getPercentile(95)).append(' ')
+					.append(histogram.getPercentile(99)).append(' ')
+					.append(histogram.getMax()).append('\n');
+		}
+		return report.toString();
+	}
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.location.Criteria;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process wide location of the device for targeting. The location is refreshed at most every
+ * {@link MadUtil#SECONDS_TO_REFRESH_LOCATION} seconds: the last known location of the provider is
+ * used, if it is recent enough, otherwise a single listener waits for the next fix. There is never
+ * more than one registered listener, no matter how many threads refresh the location.
+ * <p>
+ * In the passive mode the location costs no power: only fixes, that other apps obtained already,
+ * are used, the last known locations of all providers and, where available, the updates of the
+ * passive provider. As these fixes may be old or coarse, a fix is only used, if it is accurate and
+ * recent enough, and its coordinates are truncated, before they are sent. The active mode uses
+ * every fix with full precision. The mode and the thresholds of the passive mode are set in the
+ * AndroidManifest.xml:
+ *
+ * <pre>
+ * &lt;meta-data android:name="madvertise_location_mode" android:value="passive" /&gt;
+ * &lt;meta-data android:name="madvertise_location_max_accuracy" android:value="2000" /&gt; (meters)
+ * &lt;meta-data android:name="madvertise_location_max_age" android:value="3600" /&gt; (seconds)
+ * &lt;meta-data android:name="madvertise_location_precision" android:value="3" /&gt; (decimal places)
+ * </pre>
+ * <p>
+ * The state is held in atomic fields, readers get an immutable {@link Snapshot} without locking.
+ * Listeners are only registered, while an ad view is attached to a window.
+ */
+class MadLocationService {
+
+	// a listener, that did not receive a fix by then, is removed, so it does not keep a provider busy
+	private static final long MAX_LISTEN_MILLIS = 60000;
+
+	// LocationManager.PASSIVE_PROVIDER, only available from API level 8 on
+	private static final String PASSIVE_PROVIDER = "passive";
+	private static final String PASSIVE_MODE = "passive";
+
+	private static final int MAX_ACCURACY_DEFAULT = 5000;
+	private static final int MAX_AGE_DEFAULT = 3600;
+	private static final int PRECISION_DEFAULT = 3;
+
+	private static volatile Settings settings = new Settings(false, MAX_ACCURACY_DEFAULT, MAX_AGE_DEFAULT, PRECISION_DEFAULT);
+	private static volatile boolean settingsRead = false;
+
+	private static final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(null);
+	private static final AtomicLong nextRefreshTime = new AtomicLong(0);
+	private static final AtomicBoolean listening = new AtomicBoolean(false);
+	// ad views, that are attached to a window, the listeners are removed, when there is none
+	private static final AtomicInteger attachedViews = new AtomicInteger(0);
+	private static volatile LocationManager locationManager = null;
+
+	// created on first use, the service is also used off the main thread
+	private static Handler handler = null;
+
+	/**
+	 * Location settings from the AndroidManifest.xml
+	 */
+	private static final class Settings {
+		private final boolean passive;
+		private final int maxAccuracy;
+		private final long maxAgeMillis;
+		private final int precision;
+
+		private Settings(boolean passive, int maxAccuracy, int maxAgeSeconds, int precision) {
+			this.passive = passive;
+			this.maxAccuracy = maxAccuracy;
+			this.maxAgeMillis = maxAgeSeconds * 1000L;
+			this.precision = precision;
+		}
+
+		private boolean accepts(Snapshot fix) {
+			if (!passive) return true;
+			if (fix.hasAccuracy && fix.accuracy > maxAccuracy) return false;
+			return fix.getAge() <= maxAgeMillis;
+		}
+
+		/**
+		 * @return number of decimal places of the coordinates, -1 for all
+		 */
+		private int getPrecision() {
+			return passive ? precision : -1;
+		}
+	}
+
+	/**
+	 * Immutable location fix, latitude and longitude are truncated to the configured precision
+	 */
+	static final class Snapshot {
+		protected final String latitude;
+		protected final String longitude;
+		protected final float accuracy;
+		protected final boolean hasAccuracy;
+		// UTC time of the fix in milliseconds
+		protected final long time;
+		protected final String provider;
+
+		Snapshot(Location location, int precision) {
+			this(location.getLatitude(), location.getLongitude(), location.getAccuracy(), location.hasAccuracy(),
+					location.getTime(), location.getProvider(), precision);
+		}
+
+		Snapshot(double latitude, double longitude, float accuracy, boolean hasAccuracy, long time, String provider,
+				int precision) {
+			this.latitude = truncate(latitude, precision);
+			this.longitude = truncate(longitude, precision);
+			this.accuracy = accuracy;
+			this.hasAccuracy = hasAccuracy;
+			this.time = time;
+			this.provider = provider;
+		}
+
+		/**
+		 * @return milliseconds since the fix
+		 */
+		protected long getAge() {
+			return System.currentTimeMillis() - time;
+		}
+	}
+
+	// receives the fixes of other apps in the passive mode, stays registered while an ad view is
+	// attached
+	private static final LocationListener passiveListener = new LocationListener() {
+		public void onLocationChanged(Location location) {
+			MadUtil.logMessage(null, Log.DEBUG, "Received passive location");
+			update(location);
+		}
+
+		// not used yet
+		public void onProviderDisabled(String provider) {}
+		public void onProviderEnabled(String provider) {}
+		public void onStatusChanged(String provider, int status, Bundle extras) {}
+	};
+
+	// receives a single fix and removes itself
+	private static final LocationListener listener = new LocationListener() {
+		public void onLocationChanged(Location location) {
+			MadUtil.logMessage(null, Log.DEBUG, "Refreshing location");
+			update(location);
+			stopListening();
+		}
+
+		// not used yet
+		public void onProviderDisabled(String provider) {}
+		public void onProviderEnabled(String provider) {}
+		public void onStatusChanged(String provider, int status, Bundle extras) {}
+	};
+
+	private static final Runnable stopListening = new Runnable() {
+		public void run() {
+			MadUtil.logMessage(null, Log.DEBUG, "No location fix received, stop listening");
+			stopListening();
+		}
+	};
+
+	/**
+	 * @return the current location or null, if it is not known or too old
+	 */
+	protected static Snapshot getSnapshot() {
+		Snapshot currentSnapshot = snapshot.get();
+		return currentSnapshot != null && settings.accepts(currentSnapshot) ? currentSnapshot : null;
+	}
+
+	/**
+	 * Refreshes the location, if it is due and an ad view is attached. Non blocking call, may be
+	 * called from any thread.
+	 *
+	 * @param context
+	 *            any context of the application
+	 */
+	protected static void refresh(Context context) {
+		// a listener registered now would never be removed
+		if (attachedViews.get() == 0) return;
+		if (!claimRefresh(SystemClock.elapsedRealtime())) return;
+
+		MadUtil.logMessage(null, Log.DEBUG, "Trying to refresh location");
+		if (!settingsRead) readSettings(context);
+
+		boolean permissionCoarseLocation = context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+		boolean permissionFineLocation = context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+		if (!permissionCoarseLocation && !permissionFineLocation) {
+			MadUtil.logMessage(null, Log.DEBUG, "No permissions for requesting the location");
+			return;
+		}
+
+		LocationManager manager = (LocationManager) context.getApplicationContext().getSystemService(Context.LOCATION_SERVICE);
+		if (manager == null) {
+			MadUtil.logMessage(null, Log.DEBUG, "Unable to fetch a location manger");
+			return;
+		}
+		locationManager = manager;
+
+		if (settings.passive) {
+			refreshPassive(manager, permissionFineLocation);
+			return;
+		}
+
+		String provider = getProvider(manager, permissionCoarseLocation, permissionFineLocation);
+		if (provider == null) {
+			MadUtil.logMessage(null, Log.DEBUG, "Unable to fetch a location provider");
+			return;
+		}
+
+		// fast path, a recent fix of the provider needs no listener
+		Location lastKnownLocation = manager.getLastKnownLocation(provider);
+		if (lastKnownLocation != null) {
+			update(lastKnownLocation);
+			if (System.currentTimeMillis() - lastKnownLocation.getTime() < MadUtil.SECONDS_TO_REFRESH_LOCATION * 1000L) {
+				MadUtil.logMessage(null, Log.DEBUG, "Using last known location");
+				return;
+			}
+		}
+
+		startListening(manager, provider, 0, listener);
+	}
+
+	/**
+	 * Registers a listener on the ui thread, where the listeners are also removed, so it is not
+	 * registered after the last ad view was detached.
+	 */
+	private static void startListening(final LocationManager manager, final String provider, final long minTime,
+			final LocationListener locationListener) {
+		getHandler().post(new Runnable() {
+			public void run() {
+				if (attachedViews.get() == 0 || !listening.compareAndSet(false, true)) return;
+
+				MadUtil.logMessage(null, Log.DEBUG, "Requesting location updates from provider: ", provider);
+				manager.requestLocationUpdates(provider, minTime, 0, locationListener, Looper.getMainLooper());
+				// the passive listener stays registered until the last ad view is detached
+				if (locationListener == listener) getHandler().postDelayed(stopListening, MAX_LISTEN_MILLIS);
+			}
+		});
+	}
+
+	/**
+	 * Records an ad view, that was attached to a window. Must be called on the ui thread.
+	 */
+	protected static void onViewAttached() {
+		attachedViews.incrementAndGet();
+	}
+
+	/**
+	 * Records an ad view, that was detached from its window. When the last view is detached, the
+	 * registered listener is removed and the next refresh registers it again. Must be called on
+	 * the ui thread.
+	 */
+	protected static void onViewDetached() {
+		if (attachedViews.decrementAndGet() > 0) return;
+
+		getHandler().removeCallbacks(stopListening);
+		if (listening.compareAndSet(true, false)) {
+			MadUtil.logMessage(null, Log.DEBUG, "No ad view attached, stop listening");
+			locationManager.removeUpdates(settings.passive ? passiveListener : listener);
+		}
+		nextRefreshTime.set(0);
+	}
+
+	/**
+	 * Decides, which thread refreshes the location. Of all threads, that find a refresh due, only
+	 * the one, that moves the refresh time ahead, gets true.
+	 *
+	 * @param now
+	 *            current time from {@link SystemClock#elapsedRealtime()}
+	 * @return true, if the calling thread must refresh the location
+	 */
+	protected static boolean claimRefresh(long now) {
+		long refreshTime = nextRefreshTime.get();
+		return now >= refreshTime && nextRefreshTime.compareAndSet(refreshTime, now + MadUtil.SECONDS_TO_REFRESH_LOCATION * 1000L);
+	}
+
+	/**
+	 * Uses the fixes of other apps only
+	 */
+	private static void refreshPassive(LocationManager manager, boolean permissionFineLocation) {
+		List<String> providers = manager.getAllProviders();
+		for (int i = 0; i < providers.size(); i++) {
+			try {
+				Location lastKnownLocation = manager.getLastKnownLocation(providers.get(i));
+				if (lastKnownLocation != null) update(lastKnownLocation);
+			} catch (SecurityException e) {
+				// e.g. gps without the fine location permission
+			} catch (IllegalArgumentException e) {
+				// provider was removed in the meantime
+			}
+		}
+
+		// the passive provider needs the fine location permission
+		if (permissionFineLocation && providers.contains(PASSIVE_PROVIDER) && !listening.get()) {
+			startListening(manager, PASSIVE_PROVIDER, MadUtil.SECONDS_TO_REFRESH_LOCATION * 1000L, passiveListener);
+		}
+	}
+
+	private static String getProvider(LocationManager manager, boolean permissionCoarseLocation, boolean permissionFineLocation) {
+		String provider = null;
+		Criteria criteria = new Criteria();
+		criteria.setCostAllowed(false);
+
+		// try to get coarse location first
+		if (permissionCoarseLocation) {
+			criteria.setAccuracy(Criteria.ACCURACY_COARSE);
+			provider = manager.getBestProvider(criteria, true);
+		}
+
+		// try to get gps location if coarse location did not work
+		if (provider == null && permissionFineLocation) {
+			criteria.setAccuracy(Criteria.ACCURACY_FINE);
+			provider = manager.getBestProvider(criteria, true);
+		}
+		return provider;
+	}
+
+	/**
+	 * Publishes a fix, unless it is not accurate or recent enough, or a newer one is known already
+	 *
+	 * @param location
+	 */
+	private static void update(Location location) {
+		publish(new Snapshot(location, settings.getPrecision()));
+	}
+
+	/**
+	 * Publishes a fix, unless it is not accurate or recent enough, or a newer one is known already.
+	 * May be called from any thread.
+	 *
+	 * @param newSnapshot
+	 * @return true, if the fix became the current location
+	 */
+	protected static boolean publish(Snapshot newSnapshot) {
+		if (!settings.accepts(newSnapshot)) {
+			MadUtil.logMessage(null, Log.DEBUG, "Ignoring inaccurate or old location from provider: ", newSnapshot.provider);
+			return false;
+		}
+
+		Snapshot oldSnapshot;
+		do {
+			oldSnapshot = snapshot.get();
+			if (oldSnapshot != null && oldSnapshot.time >= newSnapshot.time) return false;
+		} while (!snapshot.compareAndSet(oldSnapshot, newSnapshot));
+
+		// the request context contains the location
+		MadRequestContext.invalidate();
+		return true;
+	}
+
+	/**
+	 * Truncates a coordinate, e.g. 3 decimal places are about 100 meters
+	 *
+	 * @param coordinate
+	 * @param precision
+	 *            number of decimal places, a negative value keeps all
+	 * @return the coordinate as string
+	 */
+	private static String truncate(double coordinate, int precision) {
+		if (precision < 0) return Double.toString(coordinate);
+		// valueOf uses the shortest decimal representation, so 52.52 is not truncated to 52.51
+		return BigDecimal.valueOf(coordinate).setScale(precision, RoundingMode.DOWN).toPlainString();
+	}
+
+	private static void readSettings(Context context) {
+		boolean passive = false;
+		int maxAccuracy = MAX_ACCURACY_DEFAULT;
+		int maxAge = MAX_AGE_DEFAULT;
+		int precision = PRECISION_DEFAULT;
+
+		try {
+			ApplicationInfo applicationInfo = context.getPackageManager().getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+			Bundle metaData = applicationInfo.metaData;
+			if (metaData != null) {
+				passive = PASSIVE_MODE.equals(metaData.getString("madvertise_location_mode"));
+				maxAccuracy = metaData.getInt("madvertise_location_max_accuracy", MAX_ACCURACY_DEFAULT);
+				maxAge = metaData.getInt("madvertise_location_max_age", MAX_AGE_DEFAULT);
+				precision = metaData.getInt("madvertise_location_precision", PRECISION_DEFAULT);
+			}
+		} catch (PackageManager.NameNotFoundException e) {
+			// own package always exists
+		}
+
+		if (MadUtil.isLoggable(Log.DEBUG)) {
+			MadUtil.logMessage(null, Log.DEBUG, "Location settings: passive = " + passive + " max accuracy = " + maxAccuracy
+					+ " max age = " + maxAge + " precision = " + precision);
+		}
+		settings = new Settings(passive, maxAccuracy, maxAge, precision);
+		settingsRead = true;
+	}
+
+	private static synchronized Handler getHandler() {
+		if (handler == null) handler = new Handler(Looper.getMainLooper());
+		return handler;
+	}
+
+	// executed in the ui main thread
+	private static void stopListening() {
+		getHandler().removeCallbacks(stopListening);
+		if (listening.compareAndSet(true, false)) {
+			// stop draining battery life
+			locationManager.removeUpdates(listener);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.LinkedList;
+
+import android.util.Log;
+
+/**
+ * Buffer of ads of a single ad view, that were loaded ahead of their refresh deadline. Ads are
+ * handed out in the order they were loaded, ads, that expired before they were used, are dropped.
+ */
+class MadPrefetchQueue {
+
+	private final LinkedList<Ad> ads = new LinkedList<Ad>();
+	private final int depth;
+	private final long maxAgeMillis;
+
+	/**
+	 * @param depth
+	 *            maximum number of buffered ads
+	 * @param maxAgeMillis
+	 *            time after that a buffered ad expires
+	 */
+	protected MadPrefetchQueue(int depth, long maxAgeMillis) {
+		this.depth = depth;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Adds a prefetched ad, if there is room left
+	 *
+	 * @param ad
+	 * @return true, if the ad was buffered
+	 */
+	protected synchronized boolean offer(Ad ad) {
+		dropExpired();
+		if (ads.size() >= depth) return false;
+
+		ads.addLast(ad);
+		return true;
+	}
+
+	/**
+	 * Removes the oldest ad, that has not expired yet
+	 *
+	 * @return next ad or null, if no valid ad is buffered
+	 */
+	protected synchronized Ad poll() {
+		dropExpired();
+		return ads.isEmpty() ? null : ads.removeFirst();
+	}
+
+	/**
+	 * @return true, if no more ads can be buffered
+	 */
+	protected synchronized boolean isFull() {
+		dropExpired();
+		return ads.size() >= depth;
+	}
+
+	private void dropExpired() {
+		while (!ads.isEmpty() && ads.getFirst().getAge() > maxAgeMillis) {
+			MadUtil.logMessage(null, Log.DEBUG, "Dropping expired prefetched ad");
+			ads.removeFirst();
+		}
+	}
+}
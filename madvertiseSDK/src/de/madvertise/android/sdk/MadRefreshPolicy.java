@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Adapts the refresh interval of an ad view to the outcome of its requests and to the network.
+ * Every request without an ad (failure or no fill) doubles the interval, the first ad resets it.
+ * On mobile networks the interval is stretched, on slow (2G) networks even more. The result is
+ * always kept within the configured bounds.
+ */
+class MadRefreshPolicy {
+
+	// stretch factors in percent
+	private static final int MOBILE_FACTOR = 150;
+	private static final int SLOW_MOBILE_FACTOR = 300;
+	private static final int MAX_BACKOFF_STEPS = 6;
+
+	private final long baseIntervalMillis;
+	private final long minIntervalMillis;
+	private final long maxIntervalMillis;
+	private final boolean canReadNetworkState;
+
+	private int failures = 0;
+	private volatile long intervalMillis;
+
+	/**
+	 * @param context
+	 * @param baseIntervalMillis
+	 *            interval after a successful request on a fast network, 0 to refresh only once
+	 * @param minIntervalMillis
+	 *            lower bound of the interval
+	 * @param maxIntervalMillis
+	 *            upper bound of the interval
+	 */
+	MadRefreshPolicy(Context context, long baseIntervalMillis, long minIntervalMillis, long maxIntervalMillis) {
+		this.baseIntervalMillis = baseIntervalMillis;
+		this.minIntervalMillis = minIntervalMillis;
+		this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+		canReadNetworkState = context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED;
+		intervalMillis = baseIntervalMillis;
+	}
+
+	/**
+	 * Records the outcome of a request and computes the next interval.
+	 *
+	 * @param context
+	 *            any context of the application
+	 * @param filled
+	 *            true, if the request returned an ad
+	 * @return the new refresh interval in milliseconds
+	 */
+	protected synchronized long onRequestDone(Context context, boolean filled) {
+		if (baseIntervalMillis <= 0) return 0;
+
+		if (filled) {
+			failures = 0;
+		} else if (failures < MAX_BACKOFF_STEPS) {
+			failures++;
+		}
+
+		long interval = (baseIntervalMillis << failures) * getNetworkFactor(context) / 100;
+		intervalMillis = Math.max(minIntervalMillis, Math.min(maxIntervalMillis, interval));
+		MadUtil.logMessage(null, Log.DEBUG, "Refresh interval in milliseconds: ", intervalMillis);
+		return intervalMillis;
+	}
+
+	/**
+	 * @return the current refresh interval in milliseconds, 0 if the view is refreshed only once
+	 */
+	protected long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	private int getNetworkFactor(Context context) {
+		if (!canReadNetworkState) return 100;
+
+		ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+		if (networkInfo == null || networkInfo.getType() != ConnectivityManager.TYPE_MOBILE) return 100;
+
+		switch (networkInfo.getSubtype()) {
+		case TelephonyManager.NETWORK_TYPE_GPRS:
+		case TelephonyManager.NETWORK_TYPE_EDGE:
+		case TelephonyManager.NETWORK_TYPE_CDMA:
+		case TelephonyManager.NETWORK_TYPE_1xRTT:
+			return SLOW_MOBILE_FACTOR;
+		default:
+			return MOBILE_FACTOR;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Central scheduler, that drives the refresh cadence of all ad views. There is no timer thread:
+ * a single message on the main looper is armed for the earliest due refresh. Refreshes, that fall
+ * into the same batch window, are fired together, so the radio wakes up once per batch instead
+ * of once per view.
+ * <p>
+ * Every view owns an {@link Entry}. Pausing an entry keeps its schedule, so a view, that is
+ * detached or loses focus, continues where it stopped when it is resumed.
+ */
+class MadRefreshScheduler {
+
+	protected static final long BATCH_WINDOW_MILLIS = 5000;
+
+	private static final Object LOCK = new Object();
+	private static final List<Entry> activeEntries = new ArrayList<Entry>();
+	private static final Handler handler = new Handler(Looper.getMainLooper());
+
+	private static long scheduledTickTime = Long.MAX_VALUE;
+
+	private static final Runnable TICK = new Runnable() {
+		public void run() {
+			tick();
+		}
+	};
+
+	/**
+	 * Refresh schedule of a single ad view
+	 */
+	static class Entry {
+		private final Runnable task;
+		private long intervalMillis;
+		private long lastRefreshTime = 0;
+		private long nextRefreshTime = 0;
+		private boolean active = false;
+
+		private Entry(Runnable task, long intervalMillis) {
+			this.task = task;
+			this.intervalMillis = intervalMillis;
+		}
+	}
+
+	/**
+	 * Creates a paused schedule for the given task. The first refresh is due as soon as the
+	 * entry is resumed.
+	 *
+	 * @param task
+	 *            task to run on the main thread when a refresh is due
+	 * @param intervalMillis
+	 *            refresh interval, 0 to run the task only once
+	 * @return the new schedule
+	 */
+	protected static Entry createEntry(Runnable task, long intervalMillis) {
+		return new Entry(task, intervalMillis);
+	}
+
+	/**
+	 * Starts or continues a schedule. An overdue refresh is fired with the next batch.
+	 *
+	 * @param entry
+	 */
+	protected static void resume(Entry entry) {
+		synchronized (LOCK) {
+			if (entry.active) return;
+			if (entry.nextRefreshTime == Long.MAX_VALUE) return;
+
+			entry.active = true;
+			activeEntries.add(entry);
+			armTick();
+		}
+	}
+
+	/**
+	 * Stops a schedule without losing the time of its next refresh.
+	 *
+	 * @param entry
+	 */
+	protected static void pause(Entry entry) {
+		synchronized (LOCK) {
+			if (!entry.active) return;
+
+			entry.active = false;
+			activeEntries.remove(entry);
+			armTick();
+		}
+	}
+
+	/**
+	 * Changes the refresh interval. A pending refresh is moved to the new interval after the last
+	 * refresh.
+	 *
+	 * @param entry
+	 * @param intervalMillis
+	 *            refresh interval, 0 to stop refreshing after the next refresh
+	 */
+	protected static void setInterval(Entry entry, long intervalMillis) {
+		synchronized (LOCK) {
+			if (entry.intervalMillis == intervalMillis) return;
+
+			entry.intervalMillis = intervalMillis;
+			if (entry.lastRefreshTime > 0 && intervalMillis > 0 && entry.nextRefreshTime != Long.MAX_VALUE) {
+				entry.nextRefreshTime = entry.lastRefreshTime + intervalMillis;
+				if (entry.active) armTick();
+			}
+		}
+	}
+
+	/**
+	 * @param entry
+	 * @return true, if the entry is currently scheduled
+	 */
+	protected static boolean isActive(Entry entry) {
+		synchronized (LOCK) {
+			return entry.active;
+		}
+	}
+
+	/**
+	 * @param entry
+	 * @return milliseconds until the next refresh of the entry is due, 0 if it is overdue,
+	 *         Long.MAX_VALUE if it is never due again
+	 */
+	protected static long getMillisToNextRefresh(Entry entry) {
+		synchronized (LOCK) {
+			if (entry.nextRefreshTime == Long.MAX_VALUE) return Long.MAX_VALUE;
+			return Math.max(0, entry.nextRefreshTime - SystemClock.uptimeMillis());
+		}
+	}
+
+	/**
+	 * @return number of entries, that are currently scheduled
+	 */
+	protected static int getActiveCount() {
+		synchronized (LOCK) {
+			return activeEntries.size();
+		}
+	}
+
+	/**
+	 * Arms the tick message for the earliest due entry. Must be called with the lock held.
+	 */
+	private static void armTick() {
+		long earliest = Long.MAX_VALUE;
+		for (int i = 0; i < activeEntries.size(); i++) {
+			earliest = Math.min(earliest, activeEntries.get(i).nextRefreshTime);
+		}
+
+		if (earliest == scheduledTickTime) return;
+
+		handler.removeCallbacks(TICK);
+		scheduledTickTime = earliest;
+		if (earliest != Long.MAX_VALUE) {
+			handler.postAtTime(TICK, earliest);
+		}
+	}
+
+	/**
+	 * Fires all entries, that are due within the batch window. Runs on the main thread.
+	 */
+	private static void tick() {
+		List<Runnable> dueTasks = new ArrayList<Runnable>();
+
+		synchronized (LOCK) {
+			long now = SystemClock.uptimeMillis();
+			scheduledTickTime = Long.MAX_VALUE;
+
+			for (int i = activeEntries.size() - 1; i >= 0; i--) {
+				Entry entry = activeEntries.get(i);
+				if (entry.nextRefreshTime > now + BATCH_WINDOW_MILLIS) continue;
+
+				dueTasks.add(entry.task);
+				entry.lastRefreshTime = now;
+				if (entry.intervalMillis > 0) {
+					entry.nextRefreshTime = now + entry.intervalMillis;
+				} else {
+					// one shot, never due again
+					entry.nextRefreshTime = Long.MAX_VALUE;
+					entry.active = false;
+					activeEntries.remove(i);
+				}
+			}
+			armTick();
+		}
+
+		MadUtil.logMessage(null, Log.DEBUG, "Number of ad views to refresh: ", dueTasks.size());
+		for (int i = 0; i < dueTasks.size(); i++) {
+			dueTasks.get(i).run();
+		}
+	}
+}
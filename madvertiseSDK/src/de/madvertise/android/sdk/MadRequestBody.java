@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * Parameters of an ad request, starting with the parameters of the {@link MadRequestContext},
+ * that are the same for every request. The body is either url encoded or, for ad servers, that
+ * support it, in the compact binary format:
+ *
+ * <pre>
+ * version (1 byte, currently 1)
+ * tag of the name (1 byte), [slot index (1 byte)], value (2 byte length + modified UTF-8)
+ * ... until the end of the body
+ * </pre>
+ *
+ * The tags of the known names are their index in {@link #PARAMETER_NAMES}, names ending with '_'
+ * are followed by the index of the slot, e.g. "banner_type_2". Tag 0 is followed by the name
+ * itself (2 byte length + modified UTF-8). The user agent (tag 1) is sent without the constant
+ * prefix and suffix of {@link MadUtil#getUA()}, only its platform part, e.g. "2.1; de-de; Nexus One
+ * Build/ERD79". A user agent, that does not match the template, is sent with tag 0.
+ * <p>
+ * The body is not compressed: a binary request is about 150 bytes of ids, addresses and
+ * coordinates, that gzip does not shrink, its header and trailer alone are 18 bytes. And the ad
+ * server would have to accept a Content-Encoding on requests.
+ * <p>
+ * A request with a binary body accepts a binary response (see
+ * {@link MadAdParser#parseBinary(java.io.InputStream)}), but the server may still answer with
+ * json.
+ */
+class MadRequestBody {
+
+	protected static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded; charset=utf-8";
+	protected static final String BINARY_CONTENT_TYPE = "application/x-madvertise-binary";
+	protected static final int BINARY_FORMAT_VERSION = 1;
+
+	// the index of a name is its tag in the binary format, 0 is followed by the name itself
+	protected static final String[] PARAMETER_NAMES = new String[] { null, "ua", "app", "ip", "format", "requester", "version", "uid",
+			"lat", "lng", "debug", "banner_type", "deliver_only_text", "slots", "banner_type_", "deliver_only_text_" };
+	protected static final int NAME_TAG = 0;
+	protected static final int UA_TAG = 1;
+
+	private final StringBuilder formBody;
+	private final ByteArrayOutputStream binaryBody;
+	private final DataOutputStream binaryOutput;
+
+	/**
+	 * @param requestContext
+	 *            provides the common parameters
+	 * @param binary
+	 *            true for the compact binary format, false for a url encoded form
+	 */
+	MadRequestBody(MadRequestContext requestContext, boolean binary) {
+		if (binary) {
+			byte[] parameters = requestContext.getBinaryParameters();
+			formBody = null;
+			binaryBody = new ByteArrayOutputStream(parameters.length + 128);
+			binaryBody.write(parameters, 0, parameters.length);
+			binaryOutput = new DataOutputStream(binaryBody);
+		} else {
+			formBody = new StringBuilder(requestContext.getEncodedParameters());
+			binaryBody = null;
+			binaryOutput = null;
+		}
+	}
+
+	/**
+	 * Appends a parameter
+	 *
+	 * @param name
+	 * @param value
+	 * @return this body
+	 */
+	protected MadRequestBody add(String name, String value) {
+		if (binaryOutput != null) {
+			writeParameter(binaryOutput, name, value);
+		} else {
+			MadRequestContext.appendParameter(formBody, name, value);
+		}
+		return this;
+	}
+
+	protected boolean isBinary() {
+		return binaryOutput != null;
+	}
+
+	/**
+	 * @return entity for a post request, with the matching content type
+	 */
+	protected HttpEntity createEntity() {
+		if (binaryOutput != null) {
+			ByteArrayEntity entity = new ByteArrayEntity(binaryBody.toByteArray());
+			entity.setContentType(BINARY_CONTENT_TYPE);
+			return entity;
+		}
+
+		try {
+			StringEntity entity = new StringEntity(formBody.toString(), MadUtil.ENCODING);
+			entity.setContentType(FORM_CONTENT_TYPE);
+			return entity;
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return binaryOutput != null ? "<" + binaryBody.size() + " bytes binary>" : formBody.toString();
+	}
+
+	/**
+	 * Writes a parameter in the binary format
+	 *
+	 * @param output
+	 *            stream, that writes to memory
+	 * @param name
+	 *            parameter name
+	 * @param value
+	 *            parameter value
+	 */
+	protected static void writeParameter(DataOutputStream output, String name, String value) {
+		try {
+			if (name.equals("ua")) {
+				if (value.startsWith(MadUtil.UA_PREFIX) && value.endsWith(MadUtil.UA_SUFFIX)
+						&& value.length() >= MadUtil.UA_PREFIX.length() + MadUtil.UA_SUFFIX.length()) {
+					output.writeByte(UA_TAG);
+					output.writeUTF(value.substring(MadUtil.UA_PREFIX.length(), value.length() - MadUtil.UA_SUFFIX.length()));
+					return;
+				}
+			} else if (writeTag(output, name)) {
+				output.writeUTF(value);
+				return;
+			}
+
+			output.writeByte(NAME_TAG);
+			output.writeUTF(name);
+			output.writeUTF(value);
+		} catch (IOException e) {
+			// only thrown by streams, that do not write to memory
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the tag of a known name and the index of its slot, if it has one
+	 *
+	 * @return false, if the name has no tag
+	 */
+	private static boolean writeTag(DataOutputStream output, String name) throws IOException {
+		for (int tag = UA_TAG + 1; tag < PARAMETER_NAMES.length; tag++) {
+			String tagName = PARAMETER_NAMES[tag];
+			if (!name.startsWith(tagName)) continue;
+
+			if (name.length() == tagName.length() && !tagName.endsWith("_")) {
+				output.writeByte(tag);
+				return true;
+			}
+			if (tagName.endsWith("_")) {
+				int index = parseIndex(name.substring(tagName.length()));
+				if (index < 0) continue;
+				output.writeByte(tag);
+				output.writeByte(index);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return slot index, -1 if it does not fit into a byte
+	 */
+	private static int parseIndex(String index) {
+		// a leading zero would not survive the round trip
+		if (index.length() == 0 || index.length() > 3 || (index.length() > 1 && index.charAt(0) == '0')) return -1;
+		int value = 0;
+		for (int i = 0; i < index.length(); i++) {
+			char c = index.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value <= 255 ? value : -1;
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import android.os.SystemClock;
+
+/**
+ * Deadlines of a request, including its retries: a connect timeout, a socket timeout and a total
+ * budget. The socket timeout limits every single read, the wait for the first byte of the
+ * response as well as every read of the body. Connect and socket timeouts follow the measured
+ * connect and first byte times of previous requests, the way TCP computes its retransmission
+ * timeout: smoothed round trip time plus four times its variation. A timeout, that expires, is
+ * raised for the following requests. The total budget is enforced by the reads of the response
+ * (see {@link DeadlineExceededException}) and never changes the estimates.
+ * <p>
+ * Until the first round trip is measured, the timeouts are long enough for slow mobile networks.
+ */
+class MadRequestBudget {
+
+	protected static final long INITIAL_CONNECT_MILLIS = 5000;
+	protected static final long INITIAL_FIRST_BYTE_MILLIS = 8000;
+	private static final long MIN_CONNECT_MILLIS = 1500;
+	private static final long MAX_CONNECT_MILLIS = 15000;
+	private static final long MIN_FIRST_BYTE_MILLIS = 2000;
+	private static final long MAX_FIRST_BYTE_MILLIS = 20000;
+	private static final long MAX_TOTAL_MILLIS = 30000;
+	private static final long RETRY_DELAY_MILLIS = 500;
+
+	private static final RoundTripEstimator connectEstimator = new RoundTripEstimator(INITIAL_CONNECT_MILLIS);
+	private static final RoundTripEstimator firstByteEstimator = new RoundTripEstimator(INITIAL_FIRST_BYTE_MILLIS);
+
+	private final long startTime = SystemClock.elapsedRealtime();
+	private final long connectMillis;
+	private final long firstByteMillis;
+	private final long totalMillis;
+
+	/**
+	 * Thrown by a read, that starts after the total budget of the request ran out
+	 */
+	static class DeadlineExceededException extends InterruptedIOException {
+		DeadlineExceededException() {
+			super("Ad request exceeded its deadline");
+		}
+	}
+
+	/**
+	 * Smoothed round trip time and its variation, see RFC 6298
+	 */
+	private static class RoundTripEstimator {
+		private final long initialTimeoutMillis;
+		private long smoothedMillis = -1;
+		private long variationMillis = 0;
+
+		private RoundTripEstimator(long initialTimeoutMillis) {
+			this.initialTimeoutMillis = initialTimeoutMillis;
+		}
+
+		private synchronized void add(long millis) {
+			if (smoothedMillis < 0) {
+				smoothedMillis = millis;
+				variationMillis = millis / 2;
+			} else {
+				variationMillis = (3 * variationMillis + Math.abs(smoothedMillis - millis)) / 4;
+				smoothedMillis = (7 * smoothedMillis + millis) / 8;
+			}
+		}
+
+		// an expired attempt is not measured, so the next timeout must be longer
+		private synchronized void onTimeout(long timeoutMillis) {
+			if (smoothedMillis < timeoutMillis) {
+				smoothedMillis = timeoutMillis;
+				variationMillis = Math.max(variationMillis, timeoutMillis / 4);
+			}
+		}
+
+		private synchronized long getTimeout(long minMillis, long maxMillis) {
+			if (smoothedMillis < 0) return initialTimeoutMillis;
+			return Math.max(minMillis, Math.min(maxMillis, smoothedMillis + 4 * variationMillis));
+		}
+	}
+
+	/**
+	 * Creates the budget of a new request from the current round trip estimates
+	 */
+	MadRequestBudget() {
+		connectMillis = connectEstimator.getTimeout(MIN_CONNECT_MILLIS, MAX_CONNECT_MILLIS);
+		firstByteMillis = firstByteEstimator.getTimeout(MIN_FIRST_BYTE_MILLIS, MAX_FIRST_BYTE_MILLIS);
+		// leaves room for one retry with the same timeouts
+		totalMillis = Math.min(MAX_TOTAL_MILLIS, 2 * (connectMillis + firstByteMillis));
+	}
+
+	/**
+	 * Records the duration of a new connection
+	 *
+	 * @param micros
+	 */
+	protected static void onConnected(long micros) {
+		connectEstimator.add(micros / 1000);
+	}
+
+	/**
+	 * Records the time from sending a request until its response headers were received
+	 *
+	 * @param micros
+	 */
+	protected static void onFirstByte(long micros) {
+		firstByteEstimator.add(micros / 1000);
+	}
+
+	/**
+	 * Sets the timeouts of the next attempt on the parameters of a request: the connect timeout
+	 * and the socket timeout, that limits every read, not only the one of the first byte. No
+	 * timeout exceeds the remaining budget.
+	 *
+	 * @param params
+	 *            parameters of the request
+	 */
+	protected void applyTo(HttpParams params) {
+		long remainingMillis = Math.max(1, getRemainingMillis());
+		HttpConnectionParams.setConnectionTimeout(params, (int) Math.min(connectMillis, remainingMillis));
+		HttpConnectionParams.setSoTimeout(params, (int) Math.min(firstByteMillis, remainingMillis));
+	}
+
+	/**
+	 * Records a failed attempt, connect and socket timeouts raise the estimates for the following
+	 * requests. An expired total budget is no socket timeout, a slow body does not raise the first
+	 * byte estimate.
+	 *
+	 * @param e
+	 *            cause of the failure
+	 */
+	protected void onFailure(IOException e) {
+		if (e instanceof ConnectTimeoutException) {
+			connectEstimator.onTimeout(connectMillis);
+		} else if (e instanceof SocketTimeoutException) {
+			firstByteEstimator.onTimeout(firstByteMillis);
+		}
+	}
+
+	/**
+	 * Returns the delay before a retry, it doubles with every attempt and is randomized, so the
+	 * retries of several clients are spread.
+	 *
+	 * @param attempt
+	 *            number of the failed attempt, starting at 0
+	 * @return delay in milliseconds
+	 */
+	protected long getRetryDelay(int attempt) {
+		long delay = RETRY_DELAY_MILLIS << Math.min(attempt, 4);
+		return delay + (long) (Math.random() * delay / 2);
+	}
+
+	/**
+	 * @param delayMillis
+	 *            delay before the retry
+	 * @return true, if a retry after the delay would still have enough of the budget left
+	 */
+	protected boolean canRetry(long delayMillis) {
+		return getRemainingMillis() - delayMillis >= MIN_FIRST_BYTE_MILLIS;
+	}
+
+	protected long getRemainingMillis() {
+		return totalMillis - (SystemClock.elapsedRealtime() - startTime);
+	}
+}
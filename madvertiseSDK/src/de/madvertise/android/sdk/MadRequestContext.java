@@ -0,0 +1,251 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.provider.Settings.Secure;
+import android.util.Log;
+import android.view.Display;
+import android.view.WindowManager;
+
+/**
+ * Immutable snapshot of everything an ad request needs to know about the app and the device
+ * (site token, uid, ip, display size, location). The snapshot is built once and shared by all
+ * ad views. It is only rebuilt after an event, that changes its content: a connectivity change
+ * (new ip), a configuration change (display size) or a new location fix.
+ * <p>
+ * The form parameters, that are the same for every request, are encoded once (url encoded and
+ * binary), so a refresh only appends the few parameters of its slot.
+ */
+class MadRequestContext {
+
+	private static volatile MadRequestContext current = null;
+	private static boolean receiverRegistered = false;
+
+	private final String siteToken;
+	private final String uid;
+	private final String ip;
+	private final int displayWidth;
+	private final int displayHeight;
+	private final MadLocationService.Snapshot location;
+	private final String encodedParameters;
+	private final byte[] binaryParameters;
+
+	/**
+	 * Reads the request context of the app and the device
+	 *
+	 * @param context
+	 *            any context of the application
+	 */
+	private static MadRequestContext build(Context context) {
+		// get site token from manifest xml file
+		String token = MadUtil.getToken(context);
+		if (token == null) {
+			token = "";
+			MadUtil.logMessage(null, Log.DEBUG, "Cannot show ads, since the appID ist null");
+		} else {
+		    MadUtil.logMessage(null, Log.DEBUG, "appID = ", token);
+		}
+
+		// get uid (does not work in emulator)
+		String androidId = Secure.getString(context.getContentResolver(), Secure.ANDROID_ID);
+		String uid = androidId != null ? MadUtil.getMD5Hash(androidId) : "";
+		MadUtil.logMessage(null, Log.DEBUG, "uid = ", uid);
+
+		// get display metrics
+		Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+		int displayWidth = display.getWidth();
+		int displayHeight = display.getHeight();
+		MadUtil.logMessage(null, Log.DEBUG, "Display height = ", displayHeight);
+		MadUtil.logMessage(null, Log.DEBUG, "Display width = ", displayWidth);
+
+		return new MadRequestContext(token, uid, MadUtil.getLocalIpAddress(), MadUtil.getUA(), displayWidth, displayHeight,
+				MadLocationService.getSnapshot());
+	}
+
+	/**
+	 * Creates a request context and encodes its form parameters
+	 */
+	MadRequestContext(String siteToken, String uid, String ip, String ua, int displayWidth, int displayHeight,
+			MadLocationService.Snapshot location) {
+		this.siteToken = siteToken;
+		this.uid = uid;
+		this.ip = ip;
+		this.displayWidth = displayWidth;
+		this.displayHeight = displayHeight;
+		this.location = location;
+
+		// name, value, name, value, ...
+		List<String> parameters = new ArrayList<String>();
+		addParameter(parameters, "ua", ua);
+		addParameter(parameters, "app", "true");
+		addParameter(parameters, "ip", ip);
+		addParameter(parameters, "format", "json");
+		addParameter(parameters, "requester", "android_sdk");
+		addParameter(parameters, "version", "1.1");
+		addParameter(parameters, "uid", uid);
+		if (location != null) {
+			addParameter(parameters, "lat", location.latitude);
+			addParameter(parameters, "lng", location.longitude);
+		}
+
+		StringBuilder formBody = new StringBuilder(512);
+		ByteArrayOutputStream binaryBody = new ByteArrayOutputStream(384);
+		DataOutputStream binaryOutput = new DataOutputStream(binaryBody);
+		binaryBody.write(MadRequestBody.BINARY_FORMAT_VERSION);
+		for (int i = 0; i < parameters.size(); i += 2) {
+			appendParameter(formBody, parameters.get(i), parameters.get(i + 1));
+			MadRequestBody.writeParameter(binaryOutput, parameters.get(i), parameters.get(i + 1));
+		}
+		encodedParameters = formBody.toString();
+		binaryParameters = binaryBody.toByteArray();
+	}
+
+	private static void addParameter(List<String> parameters, String name, String value) {
+		parameters.add(name);
+		parameters.add(value);
+	}
+
+	/**
+	 * Returns the current request context and builds it, if necessary
+	 *
+	 * @param context
+	 *            any context of the application
+	 * @return current request context
+	 */
+	protected static MadRequestContext get(Context context) {
+		long start = System.nanoTime();
+
+		// a new location fix invalidates the context asynchronously
+		MadLocationService.refresh(context);
+
+		MadRequestContext requestContext = current;
+		// the location of the context became too old
+		if (requestContext != null && requestContext.location != MadLocationService.getSnapshot()) {
+			invalidate();
+			requestContext = null;
+		}
+		if (requestContext == null) {
+			synchronized (MadRequestContext.class) {
+				requestContext = current;
+				if (requestContext == null) {
+					MadUtil.logMessage(null, Log.DEBUG, "Building request context");
+					registerReceiver(context);
+					requestContext = build(context);
+					current = requestContext;
+				}
+			}
+		}
+		MadLatencyTracker.record(MadView.LatencyPhase.CONTEXT_BUILD, start);
+		return requestContext;
+	}
+
+	/**
+	 * Drops the current request context. The next request builds a new one.
+	 */
+	protected static void invalidate() {
+		current = null;
+	}
+
+	/**
+	 * Appends a url encoded parameter to a form body
+	 *
+	 * @param body
+	 *            form body
+	 * @param name
+	 *            parameter name
+	 * @param value
+	 *            parameter value
+	 */
+	protected static void appendParameter(StringBuilder body, String name, String value) {
+		if (body.length() > 0) body.append('&');
+		try {
+			body.append(URLEncoder.encode(name, MadUtil.ENCODING)).append('=').append(URLEncoder.encode(value, MadUtil.ENCODING));
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static void registerReceiver(Context context) {
+		if (receiverRegistered) return;
+
+		BroadcastReceiver invalidationReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				if (isInitialStickyBroadcast()) return;
+
+				MadUtil.logMessage(null, Log.DEBUG, "Request context invalidated by ", intent.getAction());
+				invalidate();
+			}
+		};
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+		filter.addAction(Intent.ACTION_CONFIGURATION_CHANGED);
+		context.getApplicationContext().registerReceiver(invalidationReceiver, filter);
+		receiverRegistered = true;
+	}
+
+	protected String getSiteToken() {
+		return siteToken;
+	}
+
+	protected String getUid() {
+		return uid;
+	}
+
+	protected String getIp() {
+		return ip;
+	}
+
+	protected int getDisplayWidth() {
+		return displayWidth;
+	}
+
+	protected int getDisplayHeight() {
+		return displayHeight;
+	}
+
+	protected MadLocationService.Snapshot getLocation() {
+		return location;
+	}
+
+	/**
+	 * @return url encoded form parameters, that are the same for every request
+	 */
+	protected String getEncodedParameters() {
+		return encodedParameters;
+	}
+
+	/**
+	 * @return form parameters, that are the same for every request, in the binary format of
+	 *         {@link MadRequestBody}, including the version byte; the array must not be modified
+	 */
+	protected byte[] getBinaryParameters() {
+		return binaryParameters;
+	}
+}
@@ -15,32 +15,26 @@
  */
 package de.madvertise.android.sdk;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Locale;
 
 import org.apache.http.Header;
-import org.apache.http.NameValuePair;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
-import android.location.Criteria;
-import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.os.Build;
-import android.os.Bundle;
 import android.util.Log;
 
 /**
@@ -49,10 +43,13 @@ import android.util.Log;
 public class MadUtil {
 
 	protected static final String LOG = "MAD_LOG";
-	protected static final boolean PRINT_LOG = true;
+	// compile time switch for all logging, set it to false to strip every guarded log statement.
+	// With it, messages are logged, if enabled with "adb shell setprop log.tag.MAD_LOG DEBUG".
+	protected static final boolean LOG_ENABLED = true;
+	// compile time switch for debug builds, logs all messages regardless of the runtime level
+	protected static final boolean PRINT_LOG = false;
 	protected static final String MAD_SERVER = "http://ad.madvertise.de";
 //	protected static final String MAD_SERVER = "http://10.0.0.138:9292";
-	protected static final Integer CONNECTION_TIMEOUT = new  Integer(1000);
 	protected static final String ENCODING = "UTF-8";
 	protected static final int SECONDS_TO_REFRESH_LOCATION = 900;
 	protected static final int SECONDS_TO_REFRESH_AD_DEFAULT = 30;
@@ -63,12 +60,19 @@ public class MadUtil {
 	protected static final boolean DELIVER_ONLY_TEXT_DEFAULT = false;
 	protected static final int TEXT_SIZE_DEFAULT = 18;
 	
+	protected static final int MAX_BANNER_SIZE = 512 * 1024;
+	protected static final int STREAM_BUFFER_SIZE = 8192;
+	
 	protected static final int MMA_BANNER_HEIGHT_DEFAULT = 53;
 	protected static final int IAB_BANNER_HEIGHT_DEFAULT = 250;
 	
+	// the user agent of the browser, only the platform between prefix and suffix varies
+	// TODO: add version detection for AppleWebKit, Version and Safari
+	protected static final String UA_PREFIX = "Mozilla/5.0 (Linux; U; Android ";
+	protected static final String UA_SUFFIX = ") AppleWebKit/525.10+ (KHTML, like Gecko) Version/3.0.4 Mobile Safari/523.12.2";
+
 	private static String UA;
-	private static long locationUpdateTimestamp = 0;
-	private static Location currentLocation = null;
+	private static String serverUrl = MAD_SERVER;
 	
 	/**
 	 * Returns the madvertise token
@@ -85,17 +89,35 @@ public class MadUtil {
 			ApplicationInfo applicationInfo = packageManager.getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
 			madvertiseToken = applicationInfo.metaData.getString("madvertise_site_token");
 		} catch (Exception e) {
-			e.printStackTrace();
+			logMessage(null, Log.DEBUG, "Could not read meta data of the application", e);
 		}
 
 		if (madvertiseToken == null) {
-			if (PRINT_LOG) Log.d(MadUtil.LOG, "Could not fetch \"madvertise_site_token\" from AndroidManifest.xml");
-			
+			logMessage(null, Log.DEBUG, "Could not fetch \"madvertise_site_token\" from AndroidManifest.xml");
 		}
 
 		return madvertiseToken;
 	}
 
+	/**
+	 * Returns the base url of the ad server, that is used for all ad requests
+	 * 
+	 * @return server url without trailing slash
+	 */
+	protected static String getServerUrl() {
+		return serverUrl;
+	}
+
+	/**
+	 * Points all ad requests to another server, e.g. a local stub server while testing.
+	 * 
+	 * @param url
+	 *            server url without trailing slash or null to reset to the madvertise ad server
+	 */
+	protected static void setServerUrl(String url) {
+		serverUrl = url != null ? url : MAD_SERVER;
+	}
+
 	/**
 	 * Fetch the address of the enabled interface
 	 * 
@@ -113,11 +135,40 @@ public class MadUtil {
 				}
 			}
 		} catch (SocketException ex) {
-			if (PRINT_LOG) Log.d(MadUtil.LOG, ex.toString());
+			logMessage(null, Log.DEBUG, "Could not read network interfaces: ", ex.getMessage());
 		}
 		return "";
 	}
 
+	/**
+	 * Returns the MD5 hash for a string.
+	 * 
+	 * @param input
+	 * @return md5 hash
+	 */
+	protected static String getMD5Hash(String input) {
+		MessageDigest messageDigest = null;
+
+		try {
+			messageDigest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			logMessage(null, Log.DEBUG, "Could not create hash value", e);
+			return "";
+		}
+		messageDigest.update(input.getBytes());
+		String temp = null;
+		byte[] digest = messageDigest.digest();
+		StringBuffer hexString = new StringBuffer();
+		for (int i = 0; i < digest.length; i++) {
+			temp = Integer.toHexString(0xFF & digest[i]);
+			if (temp.length() < 2) {
+				temp = "0" + temp;
+			}
+			hexString.append(temp);
+		}
+		return hexString.toString();
+	}
+
 	/**
 	 * Print all header parameters, just for logging purpose
 	 * 
@@ -126,11 +177,11 @@ public class MadUtil {
 	 * @return all headers concatenated
 	 */
 	protected static String getAllHeadersAsString(Header[] headers) {
-		String returnString = "";
+		StringBuilder builder = new StringBuilder(headers.length * 48);
 		for (int i = 0; i < headers.length; i++) {
-			returnString += "<< " + headers[i].getName() + " : " + headers[i].getValue() + " >>";
+			builder.append("<< ").append(headers[i].getName()).append(" : ").append(headers[i].getValue()).append(" >>");
 		}
-		return returnString;
+		return builder.toString();
 	}
 
 	/**
@@ -141,18 +192,122 @@ public class MadUtil {
 	 * @return byte array
 	 */
 	protected static byte[] convertStreamToByteArray(InputStream inputStream) {
-		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(1024);
-		byte[] buffer = new byte[1024];
-		int len;
 		try {
-			while ((len = inputStream.read(buffer)) >= 0) {
-				byteArrayOutputStream.write(buffer, 0, len);
-			}
+			return readStream(inputStream, -1, Integer.MAX_VALUE);
 		} catch (IOException e) {
+			return new byte[0];
+		}
+	}
+
+	/**
+	 * Reads a stream completely with bulk reads. If the length of the stream is known in advance,
+	 * the bytes are read straight into an array of that size, otherwise into a growing buffer.
+	 * 
+	 * @param inputStream
+	 *            the input stream, is not closed
+	 * @param expectedLength
+	 *            number of bytes in the stream, e.g. from the Content-Length header, or a negative
+	 *            value if unknown
+	 * @param maxLength
+	 *            maximum number of bytes to read
+	 * @return all bytes of the stream
+	 * @throws IOException
+	 *             if the stream could not be read, ends prematurely or exceeds maxLength
+	 */
+	protected static byte[] readStream(InputStream inputStream, long expectedLength, int maxLength) throws IOException {
+		if (expectedLength > maxLength) {
+			throw new IOException("Stream exceeds maximum size of " + maxLength + " bytes");
+		}
+
+		if (expectedLength >= 0) {
+			byte[] byteArray = new byte[(int) expectedLength];
+			int offset = 0;
+			while (offset < byteArray.length) {
+				int len = inputStream.read(byteArray, offset, byteArray.length - offset);
+				if (len < 0) {
+					throw new IOException("Stream ended after " + offset + " of " + expectedLength + " bytes");
+				}
+				offset += len;
+			}
+			return byteArray;
+		}
+
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(STREAM_BUFFER_SIZE);
+		byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+		int total = 0;
+		int len;
+		while ((len = inputStream.read(buffer)) >= 0) {
+			total += len;
+			if (total > maxLength) {
+				throw new IOException("Stream exceeds maximum size of " + maxLength + " bytes");
+			}
+			byteArrayOutputStream.write(buffer, 0, len);
 		}
 		return byteArrayOutputStream.toByteArray();
 	}
 
+	/**
+	 * Decodes an image, downsampled to the size it is shown with. The bounds are read first, then
+	 * the image is decoded with the largest power of two sample size, that still covers the target
+	 * size. Blocking call, should not be called from the ui thread.
+	 * 
+	 * @param data
+	 *            encoded image
+	 * @param targetWidth
+	 *            width the image is shown with, 0 if unknown
+	 * @param targetHeight
+	 *            height the image is shown with, 0 if unknown
+	 * @return decoded bitmap or null, if the image could not be decoded
+	 */
+	protected static Bitmap decodeSampledBitmap(byte[] data, int targetWidth, int targetHeight) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			logMessage(null, Log.DEBUG, "Could not read bounds of banner");
+			return null;
+		}
+
+		options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+		options.inJustDecodeBounds = false;
+
+		if (isLoggable(Log.DEBUG)) logMessage(null, Log.DEBUG, "Decoding banner " + options.outWidth + "x" + options.outHeight + " with sample size " + options.inSampleSize);
+
+		try {
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		} catch (OutOfMemoryError e) {
+			logMessage(null, Log.DEBUG, "Not enough memory to decode banner");
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the largest power of two sample size, that keeps the image at least as large as the
+	 * target size in both dimensions.
+	 * 
+	 * @param width
+	 *            width of the encoded image
+	 * @param height
+	 *            height of the encoded image
+	 * @param targetWidth
+	 *            width the image is shown with, 0 if unknown
+	 * @param targetHeight
+	 *            height the image is shown with, 0 if unknown
+	 * @return sample size, 1 if no downsampling is possible
+	 */
+	protected static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		if (targetWidth <= 0 && targetHeight <= 0) return 1;
+		if (targetWidth <= 0) targetWidth = 1;
+		if (targetHeight <= 0) targetHeight = 1;
+
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
 	/**
 	 * Compares two streams
 	 * 
@@ -200,133 +355,6 @@ public class MadUtil {
 		}
 	}
 
-	/**
-	 * converts a stream to a string
-	 * 
-	 * @param inputStream stream from the http connection with the ad server
-	 * @return json string from the ad server
-	 */
-	protected static String convertStreamToString(InputStream inputStream) {
-		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-		StringBuilder stringBuilder = new StringBuilder();
-		String line = null;
-		try {
-			while ((line = bufferedReader.readLine()) != null) {
-				stringBuilder.append(line + "\n");
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				inputStream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		return stringBuilder.toString();
-	}
-
-	protected static Location getLocation() {
-		return currentLocation;
-	}
-
-	/**
-	 * Try to update current location. Non blocking call.
-	 * 
-	 * @param context
-	 *            application context
-	 */
-	protected static void refreshCoordinates(Context context) {
-		if (PRINT_LOG) Log.d(LOG, "Trying to refresh location");
-		
-		if (context == null) {
-			if (PRINT_LOG) Log.d(LOG, "Context not set - quit location refresh");
-			return;
-		}
-		
-		// check if we need a regular update
-		if ((locationUpdateTimestamp + MadUtil.SECONDS_TO_REFRESH_LOCATION * 1000) > System.currentTimeMillis()) {
-			if (PRINT_LOG) Log.d(LOG, "It's not time yet for refreshing the location");
-			return;
-		}
-		
-		synchronized (context) {
-			// recheck, if location was updated by another thread while we paused
-			if ((locationUpdateTimestamp + MadUtil.SECONDS_TO_REFRESH_LOCATION * 1000) > System.currentTimeMillis()) {
-				if (PRINT_LOG) Log.d(LOG, "Another thread updated the loation already");
-				return;
-			}
-			
-			boolean permissionCoarseLocation = context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
-			boolean permissionFineLocation = context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
-	
-			// return (null) if we do not have any permissions
-			if (!permissionCoarseLocation && !permissionFineLocation) {
-				if (PRINT_LOG) Log.d(LOG, "No permissions for requesting the location");
-				return;
-			}
-	
-			// return (null) if we can't get a location manager
-			LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-			if (locationManager == null) {
-				if (PRINT_LOG) Log.d(LOG, "Unable to fetch a location manger");
-				return;
-			}
-			
-			String provider = null;
-			Criteria criteria = new Criteria();
-			criteria.setCostAllowed(false);
-	
-			// try to get coarse location first
-			if (permissionCoarseLocation) {
-				criteria.setAccuracy(Criteria.ACCURACY_COARSE);
-				provider = locationManager.getBestProvider(criteria, true);
-			}
-	
-			// try to get gps location if coarse locatio did not work
-			if (provider == null && permissionFineLocation) {
-				criteria.setAccuracy(Criteria.ACCURACY_FINE);
-				provider = locationManager.getBestProvider(criteria, true);
-			}
-	
-			// still no provider, return (null)
-			if (provider == null) {
-				if (PRINT_LOG) Log.d(LOG, "Unable to fetch a location provider");
-				return;
-			}
-	
-			// create a finalized reference to the location manager, in order to
-			// access it in the inner class
-			final LocationManager finalizedLocationManager = locationManager;
-			locationUpdateTimestamp = System.currentTimeMillis();
-			locationManager.requestLocationUpdates(provider, 0, 0, new LocationListener() {
-				public void onLocationChanged(Location location) {
-					if (PRINT_LOG) Log.d(LOG, "Refreshing location");
-					currentLocation = location;
-					locationUpdateTimestamp = System.currentTimeMillis();
-					// stop draining battery life
-					finalizedLocationManager.removeUpdates(this);
-				}
-				// not used yet
-				public void onProviderDisabled(String provider) {}
-				public void onProviderEnabled(String provider) {}
-				public void onStatusChanged(String provider, int status, Bundle extras) {}
-			}, context.getMainLooper());
-		}
-	}
-
-	protected static String printRequestParameters(List<NameValuePair> parameterList) {
-		StringBuilder stringBuilder = new StringBuilder();
-		Iterator<NameValuePair> nameValueIterator = parameterList.iterator();
-		
-		while (nameValueIterator.hasNext()) {
-			NameValuePair pair = nameValueIterator.next();
-			stringBuilder.append(pair.getName() + "=" + pair.getValue() + "||" );
-		}
-		
-		return stringBuilder.toString();
-	}
-	
 	/**
 	 * Generate a User-Agent used in HTTP request to pick an ad.
 	 * Source used from Android source code "frameworks/base/core/java/android/webkit/WebSettings.java"
@@ -369,9 +397,7 @@ public class MadUtil {
 			arg.append(id);
 		}
 		
-		// TODO: add version detection for AppleWebKit, Version and Safari
-		final String rawUA = "Mozilla/5.0 (Linux; U; Android %s) AppleWebKit/525.10+ (KHTML, like Gecko) Version/3.0.4 Mobile Safari/523.12.2";
-		UA = String.format(rawUA, arg);
+		UA = UA_PREFIX + arg + UA_SUFFIX;
 		
 		return UA;
 	}
@@ -391,11 +417,71 @@ public class MadUtil {
 	 *     android.util.Log
 	 */
 	protected static void logMessage(String tag, int level, String message) {
-	    if(!PRINT_LOG) {
-            if (!Log.isLoggable(tag, level))
-                return;
-        }
-	    if(tag == null) tag = MadUtil.LOG;
-	    Log.println(level, tag, message);
+		if (!isLoggable(tag, level)) return;
+		Log.println(level, tag == null ? LOG : tag, message);
+	}
+
+	/**
+	 * Logs a message followed by a value. The value is only converted and appended, if the
+	 * message is actually logged, so a disabled log statement does not allocate anything.
+	 *
+	 * @param tag
+	 *     use a given tag for logging or use default tag if nil
+	 * @param level
+	 *     log level from {@link android.util.Log}
+	 * @param message
+	 * @param value
+	 */
+	protected static void logMessage(String tag, int level, String message, Object value) {
+		if (!isLoggable(tag, level)) return;
+		Log.println(level, tag == null ? LOG : tag, message + value);
+	}
+
+	/**
+	 * Logs a message followed by the stack trace of an exception, only if the message is actually
+	 * logged.
+	 *
+	 * @param tag
+	 *     use a given tag for logging or use default tag if nil
+	 * @param level
+	 *     log level from {@link android.util.Log}
+	 * @param message
+	 * @param throwable
+	 */
+	protected static void logMessage(String tag, int level, String message, Throwable throwable) {
+		if (!isLoggable(tag, level)) return;
+		Log.println(level, tag == null ? LOG : tag, message + '\n' + Log.getStackTraceString(throwable));
+	}
+
+	/**
+	 * @see #logMessage(String, int, String, Object)
+	 */
+	protected static void logMessage(String tag, int level, String message, long value) {
+		if (!isLoggable(tag, level)) return;
+		Log.println(level, tag == null ? LOG : tag, message + value);
+	}
+
+	/**
+	 * @see #logMessage(String, int, String, Object)
+	 */
+	protected static void logMessage(String tag, int level, String message, boolean value) {
+		if (!isLoggable(tag, level)) return;
+		Log.println(level, tag == null ? LOG : tag, message + value);
+	}
+
+	/**
+	 * Checks, if messages of the given level are logged with the default tag. Guard log
+	 * statements, that are expensive to build, with it.
+	 *
+	 * @param level
+	 *     log level from {@link android.util.Log}
+	 * @return true, if a message of this level would be printed
+	 */
+	protected static boolean isLoggable(int level) {
+		return isLoggable(LOG, level);
+	}
+
+	private static boolean isLoggable(String tag, int level) {
+		return LOG_ENABLED && (PRINT_LOG || Log.isLoggable(tag == null ? LOG : tag, level));
 	}
-}
\ No newline at end of file
+}
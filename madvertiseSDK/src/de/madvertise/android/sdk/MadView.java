@@ -15,52 +15,22 @@
  */
 package de.madvertise.android.sdk;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Rect;
 import android.graphics.Typeface;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.GradientDrawable;
 import android.os.Handler;
-import android.provider.Settings.Secure;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.view.Display;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.WindowManager;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
@@ -71,13 +41,19 @@ import android.widget.TextView;
 public class MadView extends LinearLayout {
 
 	private static final boolean IS_TESTMODE_DEFAULT = false;
-
-	// parameters for shine effect of the textview banner
-	private final int GRADIENT_TOP_ALPHA = (int) (255 * 0.50);
-	private final double GRADIENT_STOP = 0.7375;
-
-	private Ad currentAd;
-	private BitmapDrawable textBannerBackground;
+	private static final int PREFETCH_DEPTH_DEFAULT = 1;
+	private static final int SECONDS_TO_PREFETCH_DEFAULT = 10;
+	private static final int SECONDS_AD_VALID_DEFAULT = 300;
+	private static final boolean BATCH_REQUESTS_DEFAULT = false;
+	private static final boolean COMPACT_REQUESTS_DEFAULT = false;
+	private static final int MIN_SECONDS_TO_REFRESH_DEFAULT = MadUtil.SECONDS_TO_REFRESH_AD_DEFAULT;
+	private static final int MAX_SECONDS_TO_REFRESH_DEFAULT = 600;
+	private static final int MAX_REQUEST_RETRIES_DEFAULT = 1;
+
+	private volatile Ad currentAd;
+	// the last shown ad, that is added to the inventory
+	private volatile Ad persistedAd = null;
+	private Drawable textBannerBackground;
 
 	// parameters of the mad view
 	private int textColor = MadUtil.TEXT_COLOR_DEFAULT;
@@ -88,17 +64,47 @@ public class MadView extends LinearLayout {
 	private boolean deliverOnlyText = MadUtil.DELIVER_ONLY_TEXT_DEFAULT;
 	private int textSize = MadUtil.TEXT_SIZE_DEFAULT;
 	private int bannerHeight = MadUtil.MMA_BANNER_HEIGHT_DEFAULT;
+	private int prefetchDepth = PREFETCH_DEPTH_DEFAULT;
+	private int secondsToPrefetch = SECONDS_TO_PREFETCH_DEFAULT;
+	private int secondsAdValid = SECONDS_AD_VALID_DEFAULT;
+	private boolean batchRequests = BATCH_REQUESTS_DEFAULT;
+	private boolean compactRequests = COMPACT_REQUESTS_DEFAULT;
+	private int minSecondsToRefresh = MIN_SECONDS_TO_REFRESH_DEFAULT;
+	private int maxSecondsToRefresh = MAX_SECONDS_TO_REFRESH_DEFAULT;
+	private int maxRequestRetries = MAX_REQUEST_RETRIES_DEFAULT;
 	
 	private MadViewCallbackListener callbackListener = null;
 
-	private Timer adTimer = null;
+	private MadRefreshScheduler.Entry refreshEntry = null;
 
 	private final Handler mHandler = new Handler();
 
-	private boolean runningRefreshAd = false;
+	private final AtomicBoolean runningRefreshAd = new AtomicBoolean(false);
+	// a refresh became due, while a prefetch was running, its ad is shown right away
+	private final AtomicBoolean pendingRefresh = new AtomicBoolean(false);
+
+	private MadPrefetchQueue prefetchQueue;
+
+	private MadRefreshPolicy refreshPolicy;
+
+	// the ad is only refreshed, while the view is attached, its window has the focus and enough
+	// of it is on the screen
+	private boolean attached = false;
+	private boolean windowFocused = true;
+	private final MadViewabilityTracker viewabilityTracker = new MadViewabilityTracker(this, new MadViewabilityTracker.Listener() {
+		public void onViewabilityChanged(boolean viewable) {
+			MadUtil.logMessage(null, Log.DEBUG, "Viewable: ", viewable);
+			updateRefreshAdTimer();
+		}
+	});
 	
 	private Drawable initialBackground = null;
 
+	// banner views are reused for every ad of the same type
+	private StaticBannerView staticBannerView = null;
+	private AnimatedBannerView animatedBannerView = null;
+	private TextView textBannerView = null;
+
 	/**
 	 * Constructor
 	 * 
@@ -129,16 +135,16 @@ public class MadView extends LinearLayout {
 		}
 
 		initParameters(attrs);
-
-		
-		Display display = ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-		MadUtil.logMessage(null, Log.DEBUG, "Display values: Width = " + display.getWidth() + " ; Height = " + display.getHeight());
+		MadConnectivityMonitor.start(context);
+		prefetchQueue = new MadPrefetchQueue(prefetchDepth, (long) secondsAdValid * 1000);
+		refreshPolicy = new MadRefreshPolicy(context, (long) secondsToRefreshAd * 1000, (long) minSecondsToRefresh * 1000,
+				(long) maxSecondsToRefresh * 1000);
 
 		setGravity(Gravity.CENTER);
 
 		initialBackground = this.getBackground();
-		Rect r = new Rect(0, 0, display.getWidth(), display.getHeight());
-		textBannerBackground = generateBackgroundDrawable(r, backgroundColor, 0xffffff);
+		// drawn at the size of the view, when it is set as background
+		textBannerBackground = new TextBannerBackground(backgroundColor, 0xffffff);
 
 		setClickable(true);
 		setFocusable(true);
@@ -153,43 +159,92 @@ public class MadView extends LinearLayout {
 	}
 
 	private void refreshView() {
-		setBackgroundDrawable(initialBackground);
+		schedulePrefetch();
 		
 		if (currentAd != null) {
-			if (currentAd.hasBanner() && !deliverOnlyText) {
+			long start = System.nanoTime();
+			if (currentAd.hasBanner() && !deliverOnlyText && currentAd.isAnimated()) {
+				showAnimatedBannerView();
+			} else if (currentAd.hasBanner() && !deliverOnlyText) {
 				showStaticBannerView();
 			} else {
 				showTextBannerView();
 			}
+			MadLatencyTracker.record(LatencyPhase.UI_SWAP, start);
 			notifyListener(true);
+
+			// only ads, that were actually shown, are kept for the next start
+			if (currentAd != persistedAd && !currentAd.isCacheOnly()) {
+				persistedAd = currentAd;
+				MadExecutor.execute(persistAdTask);
+			}
 		} else {
+			setBannerBackground(initialBackground);
 			removeAllViews();
 			notifyListener(false);
 		}
 	}
 
 	private void showStaticBannerView() {
-	    MadUtil.logMessage(null, Log.DEBUG, "Add static banner");
+	    MadUtil.logMessage(null, Log.DEBUG, "Show static banner");
 
-		Bitmap bannerBitmap = BitmapFactory.decodeByteArray(currentAd.getImageByteArray(), 0, currentAd.getImageByteArray().length);
-		StaticBannerView staticBannerView = new StaticBannerView(getContext(), bannerBitmap);
+		if (staticBannerView == null) {
+			staticBannerView = new StaticBannerView(getContext(), null);
+		}
+		staticBannerView.setBannerBitmap(currentAd.getBannerBitmap());
+		setBannerBackground(initialBackground);
+		showBannerView(staticBannerView);
+	}
 
-		removeAllViews();
-		addView(staticBannerView);
+	private void showAnimatedBannerView() {
+	    MadUtil.logMessage(null, Log.DEBUG, "Show animated banner");
+
+		if (animatedBannerView == null) {
+			animatedBannerView = new AnimatedBannerView(getContext());
+		}
+		animatedBannerView.setGif(currentAd.getGifData(), currentAd.getBannerBitmap());
+		setBannerBackground(initialBackground);
+		showBannerView(animatedBannerView);
 	}
 
 	private void showTextBannerView() {
-	    MadUtil.logMessage(null, Log.DEBUG, "Add text banner");
-		TextView textView = new TextView(getContext());
-		textView.setGravity(Gravity.CENTER);
-		textView.setText(currentAd.getText());
-		textView.setTextSize(textSize);
-		textView.setTextColor(textColor);
-		textView.setTypeface(Typeface.DEFAULT_BOLD);
-		setBackgroundDrawable(textBannerBackground);
+	    MadUtil.logMessage(null, Log.DEBUG, "Show text banner");
+
+		if (textBannerView == null) {
+			textBannerView = new TextView(getContext());
+			textBannerView.setGravity(Gravity.CENTER);
+			textBannerView.setTextSize(textSize);
+			textBannerView.setTextColor(textColor);
+			textBannerView.setTypeface(Typeface.DEFAULT_BOLD);
+			// a text view with a fixed size is only redrawn, not laid out again, if the new text
+			// has the same height
+			textBannerView.setLayoutParams(new LinearLayout.LayoutParams(LinearLayout.LayoutParams.FILL_PARENT, LinearLayout.LayoutParams.FILL_PARENT));
+		}
+		textBannerView.setText(currentAd.getText());
+		setBannerBackground(textBannerBackground);
+		showBannerView(textBannerView);
+	}
+
+	/**
+	 * Makes the given banner view the only child. Nothing is changed, if it is already shown.
+	 * 
+	 * @param bannerView
+	 */
+	private void showBannerView(View bannerView) {
+		if (getChildCount() == 1 && getChildAt(0) == bannerView) return;
 
 		removeAllViews();
-		addView(textView);
+		bannerView.setVisibility(VISIBLE);
+		addView(bannerView);
+	}
+
+	/**
+	 * Sets the background, a background change lays out the view again
+	 * 
+	 * @param background
+	 */
+	private void setBannerBackground(Drawable background) {
+		if (getBackground() != background) setBackgroundDrawable(background);
 	}
 
 	/**
@@ -223,6 +278,7 @@ public class MadView extends LinearLayout {
 				}
 				super.setVisibility(visibility);
 			}
+			if (viewabilityTracker != null) viewabilityTracker.scheduleCheck();
 		}
 	}
 
@@ -237,7 +293,7 @@ public class MadView extends LinearLayout {
 		if (attrs != null) {
 			String packageName = "http://schemas.android.com/apk/res/" + getContext().getPackageName();
 			if (packageName != null) {
-			    MadUtil.logMessage(null, Log.DEBUG, "namespace = " + packageName);
+			    MadUtil.logMessage(null, Log.DEBUG, "namespace = ", packageName);
 			}
 			testMode = attrs.getAttributeBooleanValue(packageName, "isTestMode", IS_TESTMODE_DEFAULT);
 			textColor = attrs.getAttributeIntValue(packageName, "textColor", MadUtil.TEXT_COLOR_DEFAULT);
@@ -247,6 +303,14 @@ public class MadView extends LinearLayout {
 			if (bannerType == null) bannerType = MadUtil.BANNER_TYPE_DEFAULT;
 			deliverOnlyText = attrs.getAttributeBooleanValue(packageName, "deliverOnlyText", MadUtil.DELIVER_ONLY_TEXT_DEFAULT);
 			textSize = attrs.getAttributeIntValue(packageName, "textSize", MadUtil.TEXT_SIZE_DEFAULT);
+			prefetchDepth = attrs.getAttributeIntValue(packageName, "prefetchDepth", PREFETCH_DEPTH_DEFAULT);
+			secondsToPrefetch = attrs.getAttributeIntValue(packageName, "secondsToPrefetch", SECONDS_TO_PREFETCH_DEFAULT);
+			secondsAdValid = attrs.getAttributeIntValue(packageName, "secondsAdValid", SECONDS_AD_VALID_DEFAULT);
+			batchRequests = attrs.getAttributeBooleanValue(packageName, "batchRequests", BATCH_REQUESTS_DEFAULT);
+			compactRequests = attrs.getAttributeBooleanValue(packageName, "compactRequests", COMPACT_REQUESTS_DEFAULT);
+			minSecondsToRefresh = attrs.getAttributeIntValue(packageName, "minSecondsToRefresh", MIN_SECONDS_TO_REFRESH_DEFAULT);
+			maxSecondsToRefresh = attrs.getAttributeIntValue(packageName, "maxSecondsToRefresh", MAX_SECONDS_TO_REFRESH_DEFAULT);
+			maxRequestRetries = attrs.getAttributeIntValue(packageName, "maxRequestRetries", MAX_REQUEST_RETRIES_DEFAULT);
 		} else {
 		    MadUtil.logMessage(null, Log.DEBUG, "AttributeSet is null!");
 		}
@@ -256,151 +320,264 @@ public class MadView extends LinearLayout {
 		if (bannerType.equals("iab")) bannerHeight = MadUtil.IAB_BANNER_HEIGHT_DEFAULT; 
 		
 		MadUtil.logMessage(null, Log.DEBUG, "Using following attributes values:");
-		MadUtil.logMessage(null, Log.DEBUG, " testMode = " + testMode);
-		MadUtil.logMessage(null, Log.DEBUG, " textColor = " + textColor);
-		MadUtil.logMessage(null, Log.DEBUG, " backgroundColor = " + backgroundColor);
-		MadUtil.logMessage(null, Log.DEBUG, " secondsToRefreshAd = " + secondsToRefreshAd);
-		MadUtil.logMessage(null, Log.DEBUG, " bannerType = " + bannerType);
-		MadUtil.logMessage(null, Log.DEBUG, " deliverOnlyText = " + deliverOnlyText);
-		MadUtil.logMessage(null, Log.DEBUG, " textSize = " + textSize);
-		MadUtil.logMessage(null, Log.DEBUG, " bannerHeight = " + bannerHeight);
+		MadUtil.logMessage(null, Log.DEBUG, " testMode = ", testMode);
+		MadUtil.logMessage(null, Log.DEBUG, " textColor = ", textColor);
+		MadUtil.logMessage(null, Log.DEBUG, " backgroundColor = ", backgroundColor);
+		MadUtil.logMessage(null, Log.DEBUG, " secondsToRefreshAd = ", secondsToRefreshAd);
+		MadUtil.logMessage(null, Log.DEBUG, " bannerType = ", bannerType);
+		MadUtil.logMessage(null, Log.DEBUG, " deliverOnlyText = ", deliverOnlyText);
+		MadUtil.logMessage(null, Log.DEBUG, " textSize = ", textSize);
+		MadUtil.logMessage(null, Log.DEBUG, " bannerHeight = ", bannerHeight);
+		MadUtil.logMessage(null, Log.DEBUG, " prefetchDepth = ", prefetchDepth);
+		MadUtil.logMessage(null, Log.DEBUG, " secondsToPrefetch = ", secondsToPrefetch);
+		MadUtil.logMessage(null, Log.DEBUG, " secondsAdValid = ", secondsAdValid);
+		MadUtil.logMessage(null, Log.DEBUG, " batchRequests = ", batchRequests);
+		MadUtil.logMessage(null, Log.DEBUG, " compactRequests = ", compactRequests);
+		MadUtil.logMessage(null, Log.DEBUG, " minSecondsToRefresh = ", minSecondsToRefresh);
+		MadUtil.logMessage(null, Log.DEBUG, " maxSecondsToRefresh = ", maxSecondsToRefresh);
+		MadUtil.logMessage(null, Log.DEBUG, " maxRequestRetries = ", maxRequestRetries);
 	}
 
 	/**
-	 * Starts a background thread to fetch a new ad. Method is called
-	 * from the refresh timer task
+	 * Queues a background request for a new ad on the shared executor. Method is called
+	 * from the refresh timer task and the prefetch task
+	 * 
+	 * @param prefetch
+	 *            true to put the ad into the prefetch queue, false to show it right away
 	 */
-	private void requestNewAd() {
-	    MadUtil.logMessage(null, Log.DEBUG, "Trying to fetch a new ad");
+	private void requestNewAd(boolean prefetch) {
+	    MadUtil.logMessage(null, Log.DEBUG, prefetch ? "Trying to prefetch a new ad" : "Trying to fetch a new ad");
+
+		// no request while offline, on a mobile network it waits for the requests in flight, but not
+		// beyond the next refresh
+		long maxDeferMillis = refreshEntry != null ? MadRefreshScheduler.getMillisToNextRefresh(refreshEntry) : 0;
+		if (MadConnectivityMonitor.defer(prefetch ? mPrefetch : deferredFetch, maxDeferMillis)) return;
 
-		// exit if already requesting a new ad, not used yet
-		if (runningRefreshAd) {
+		// exit if already requesting a new ad, a refresh is answered by the running request
+		if (!runningRefreshAd.compareAndSet(false, true)) {
 		    MadUtil.logMessage(null, Log.DEBUG, "Another request is still in progress ...");
+			if (!prefetch) pendingRefresh.set(true);
 			return;
 		}
-		
-		new Thread() {
-			public void run() {
-				// read all parameters, that we need for the request
-				// get site token from manifest xml file
-				String siteToken = MadUtil.getToken(getContext());
-				if (siteToken == null) {
-					siteToken = "";
-					MadUtil.logMessage(null, Log.DEBUG, "Cannot show ads, since the appID ist null");
-				} else {
-				    MadUtil.logMessage(null, Log.DEBUG, "appID = " + siteToken);
-				}
 
-				// get uid (does not work in emulator)
-				String uid = Secure.getString(getContext().getContentResolver(), Secure.ANDROID_ID);
-				if (uid == null) {
-					uid = "";
-				} else {
-					uid = getMD5Hash(uid);
-				}
-				MadUtil.logMessage(null, Log.DEBUG, "uid = " + uid);
-
-				// get display metrics
-				Display display = ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-				int displayHeight = display.getHeight();
-				int displayWidth = display.getWidth();
-				MadUtil.logMessage(null, Log.DEBUG, "Display height = " + Integer.toString(displayHeight));
-				MadUtil.logMessage(null, Log.DEBUG, "Display width = " + Integer.toString(displayWidth));
-
-				// create post request
-				HttpPost postRequest = new HttpPost(MadUtil.MAD_SERVER + "/site/" + siteToken);
-				postRequest.setHeader("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
-
-				List<NameValuePair> parameterList = new ArrayList<NameValuePair>();
-				parameterList.add(new BasicNameValuePair("ua" , MadUtil.getUA()));
-				parameterList.add(new BasicNameValuePair("app", "true"));
-				parameterList.add(new BasicNameValuePair("debug", Boolean.toString(testMode)));
-				parameterList.add(new BasicNameValuePair("ip", MadUtil.getLocalIpAddress()));
-				parameterList.add(new BasicNameValuePair("format", "json"));
-				parameterList.add(new BasicNameValuePair("requester", "android_sdk"));
-				parameterList.add(new BasicNameValuePair("version", "1.1"));
-				parameterList.add(new BasicNameValuePair("uid", uid));
-				parameterList.add(new BasicNameValuePair("banner_type", bannerType));
-				parameterList.add(new BasicNameValuePair("deliver_only_text", Boolean.toString(deliverOnlyText)));
-
-				MadUtil.refreshCoordinates(getContext());
-				if (MadUtil.getLocation() != null) {
-					parameterList.add(new BasicNameValuePair("lat", Double.toString(MadUtil.getLocation().getLatitude())));
-					parameterList.add(new BasicNameValuePair("lng", Double.toString(MadUtil.getLocation().getLongitude())));
-				}
+		if (batchRequests) {
+			MadBatchRequest.enqueue(batchSlot, prefetch);
+		} else if (!MadExecutor.execute(prefetch ? prefetchAdTask : fetchAdTask)) {
+			runningRefreshAd.set(false);
+		}
+	}
 
-				UrlEncodedFormEntity urlEncodedEntity = null;
-				try {
-					urlEncodedEntity = new UrlEncodedFormEntity(parameterList);
-				} catch (UnsupportedEncodingException e) {
-					e.printStackTrace();
-				}
+	// executed in the ui main thread, when the network returns or the radio is awake, a deferred
+	// prefetch runs mPrefetch again
+	private final Runnable deferredFetch = new Runnable() {
+		public void run() {
+			requestNewAd(false);
+		}
+	};
 
-				postRequest.setEntity(urlEncodedEntity);
-
-				MadUtil.logMessage(null, Log.DEBUG, "Post request created");
-				MadUtil.logMessage(null, Log.DEBUG, "Uri : " + postRequest.getURI().toASCIIString());
-				MadUtil.logMessage(null, Log.DEBUG, "All headers : " + MadUtil.getAllHeadersAsString(postRequest.getAllHeaders()));
-				MadUtil.logMessage(null, Log.DEBUG, "All request parameters :" + MadUtil.printRequestParameters(parameterList));
-
-				synchronized (this) {
-					// send blocking request to ad server
-					HttpClient httpClient = new DefaultHttpClient();
-					HttpResponse httpResponse = null;
-					InputStream inputStream = null;
-					boolean jsonFetched = false;
-					JSONObject json = null;
-
-					try {
-						HttpParams clientParams = httpClient.getParams();
-						HttpConnectionParams.setConnectionTimeout(clientParams, MadUtil.CONNECTION_TIMEOUT.intValue());
-						HttpConnectionParams.setSoTimeout(clientParams, MadUtil.CONNECTION_TIMEOUT.intValue());
-
-						MadUtil.logMessage(null, Log.DEBUG, "Sending request");
-						httpResponse = httpClient.execute(postRequest);
-
-						MadUtil.logMessage(null, Log.DEBUG, "Response Code => " + httpResponse.getStatusLine().getStatusCode());
-						if (testMode)
-							MadUtil.logMessage(null, Log.DEBUG, "Madvertise Debug Response: " + httpResponse.getLastHeader("X-Madvertise-Debug"));
-						int responseCode = httpResponse.getStatusLine().getStatusCode();
-
-						HttpEntity entity = httpResponse.getEntity();
-
-						if (responseCode == 200 && entity != null) {
-							inputStream = entity.getContent();
-							String resultString = MadUtil.convertStreamToString(inputStream);
-							MadUtil.logMessage(null, Log.DEBUG, "Response => " + resultString);
-							json = new JSONObject(resultString);
-							jsonFetched = true;
-						}
-					} catch (ClientProtocolException e) {
-						e.printStackTrace();
-						MadUtil.logMessage(null, Log.DEBUG, "Error in HTTP request / protocol");
-					} catch (IOException e) {
-						e.printStackTrace();
-						MadUtil.logMessage(null, Log.DEBUG, "Could not receive a http response on an ad reqeust");
-					} catch (JSONException e) {
-						e.printStackTrace();
-						MadUtil.logMessage(null, Log.DEBUG, "Could not parse json object");
-					} finally {
-						if (inputStream != null)
-							try {
-								inputStream.close();
-							} catch (IOException e) {
-							}
-					}
-
-					// create ad, this is a blocking call
-					if (jsonFetched) {
-						currentAd = new Ad(getContext(), json);
-					}
+	// requests an ad on a thread of the shared executor and shows it
+	private final Runnable fetchAdTask = new Runnable() {
+		public void run() {
+			sendAdRequest(fetchCallback);
+		}
+	};
+
+	// requests an ad on a thread of the shared executor and buffers it for the next refresh
+	private final Runnable prefetchAdTask = new Runnable() {
+		public void run() {
+			sendAdRequest(prefetchCallback);
+		}
+	};
+
+	private final AdCallback fetchCallback = new AdCallback(false);
+	private final AdCallback prefetchCallback = new AdCallback(true);
+
+	/**
+	 * Creates the ad from the response of a request and hands it to the view
+	 */
+	private class AdCallback implements MadAdRequest.Callback {
+		private final boolean prefetch;
+
+		private AdCallback(boolean prefetch) {
+			this.prefetch = prefetch;
+		}
+
+		public void onResponse(List<MadAdParser.AdData> ads) {
+			Ad ad = null;
+			try {
+				if (ads != null && !ads.isEmpty() && ads.get(0) != null) {
+					// create ad, this is a blocking call, the banner is decoded to the size of the slot
+					ad = new Ad(getContext(), ads.get(0), getTargetWidth(), bannerHeight);
 				}
-				mHandler.post(mUpdateResults);
+			} finally {
+				onAdFetched(ad, prefetch);
+			}
+		}
+	}
+
+	// executed in the ui main thread, ahead of the next refresh
+	private final Runnable mPrefetch = new Runnable() {
+		public void run() {
+			if (!prefetchQueue.isFull()) requestNewAd(true);
+		}
+	};
+
+	/**
+	 * Schedules the prefetch of the next ad, so it is ready before the next refresh is due.
+	 */
+	private void schedulePrefetch() {
+		mHandler.removeCallbacks(mPrefetch);
+		long intervalMillis = refreshPolicy.getIntervalMillis();
+		if (prefetchDepth <= 0 || intervalMillis <= 0) return;
+
+		long delay = Math.max(0, intervalMillis - (long) secondsToPrefetch * 1000);
+		mHandler.postDelayed(mPrefetch, delay);
+	}
+
+	/**
+	 * Requests a new ad from the ad server. The callback downloads its banner. Blocking call,
+	 * must not be called from the ui thread.
+	 * 
+	 * @param callback
+	 *            receives the response, also if the request could not be built
+	 */
+	private void sendAdRequest(AdCallback callback) {
+		HttpPost postRequest;
+		try {
+			MadRequestContext requestContext = MadRequestContext.get(getContext());
+			MadRequestBody body = new MadRequestBody(requestContext, compactRequests);
+			body.add("debug", Boolean.toString(testMode));
+			body.add("banner_type", bannerType);
+			body.add("deliver_only_text", Boolean.toString(deliverOnlyText));
+
+			postRequest = MadAdRequest.createPostRequest("/site/" + requestContext.getSiteToken(), body);
+		} catch (RuntimeException e) {
+			// e.g. a site token, that is not valid in an url
+			MadUtil.logMessage(null, Log.DEBUG, "Could not create ad request: ", e.getMessage());
+			callback.onResponse(null);
+			return;
+		}
+		MadAdRequest.execute(postRequest, testMode, maxRequestRetries, callback);
+	}
+
+	/**
+	 * Creates the most recent valid ad of the inventory from the creative cache, without any
+	 * request. Blocking call, must not be called from the ui thread.
+	 * 
+	 * @return the ad or null, if the inventory has no valid ad
+	 */
+	private Ad loadInventoryAd() {
+		MadAdParser.AdData adData = MadAdInventory.getInstance(getContext()).get(bannerType, (long) secondsAdValid * 1000);
+		if (adData == null) return null;
+
+		MadUtil.logMessage(null, Log.DEBUG, "Using ad from inventory");
+		return new Ad(getContext(), adData, getTargetWidth(), bannerHeight, true);
+	}
+
+	// shows an ad of the inventory on a thread of the shared executor, while the first request of
+	// the view is still running
+	private final Runnable showInventoryAdTask = new Runnable() {
+		public void run() {
+			Ad ad = loadInventoryAd();
+			if (ad == null) return;
 
+			synchronized (MadView.this) {
+				// the first request was faster
+				if (currentAd != null) return;
+				currentAd = ad;
 			}
-		}.start();
+			mHandler.post(mUpdateResults);
+		}
+	};
+
+	// adds the last shown ad to the inventory on a thread of the shared executor
+	private final Runnable persistAdTask = new Runnable() {
+		public void run() {
+			MadAdInventory.getInstance(getContext()).add(bannerType, persistedAd);
+		}
+	};
+
+	/**
+	 * @return width, banners are decoded for
+	 */
+	private int getTargetWidth() {
+		return getWidth() > 0 ? getWidth() : MadRequestContext.get(getContext()).getDisplayWidth();
 	}
 
+	/**
+	 * Handles the result of a request. Called on a background thread.
+	 * 
+	 * @param ad
+	 *            the new ad or null, if the request failed or was not filled
+	 * @param prefetch
+	 *            true to put the ad into the prefetch queue, false to show it right away
+	 */
+	private void onAdFetched(Ad ad, boolean prefetch) {
+		runningRefreshAd.set(false);
+		if (pendingRefresh.getAndSet(false) && prefetch) {
+		    MadUtil.logMessage(null, Log.DEBUG, "Showing prefetched ad for the refresh, that is due");
+			prefetch = false;
+		}
+
+		// back off after failures and no fills, stretch the interval on slow networks
+		long intervalMillis = refreshPolicy.onRequestDone(getContext(), ad != null);
+		synchronized (this) {
+			if (refreshEntry != null) MadRefreshScheduler.setInterval(refreshEntry, intervalMillis);
+		}
+
+		if (prefetch) {
+			if (ad != null && prefetchQueue.offer(ad) && !prefetchQueue.isFull()) {
+				requestNewAd(true);
+			}
+		} else {
+			// a view without an ad shows an ad of the inventory, until a request succeeds
+			if (ad == null && currentAd == null) ad = loadInventoryAd();
+			synchronized (this) {
+				if (ad != null) currentAd = ad;
+			}
+			mHandler.post(mUpdateResults);
+		}
+	}
+
+	// takes part in batched requests of several views
+	private final MadBatchRequest.Slot batchSlot = new MadBatchRequest.Slot() {
+		public Context getContext() {
+			return MadView.this.getContext();
+		}
+
+		public String getBannerType() {
+			return bannerType;
+		}
+
+		public boolean isDeliverOnlyText() {
+			return deliverOnlyText;
+		}
+
+		public boolean isTestMode() {
+			return testMode;
+		}
+
+		public boolean isCompactRequests() {
+			return compactRequests;
+		}
+
+		public int getMaxRequestRetries() {
+			return maxRequestRetries;
+		}
+
+		public int getTargetWidth() {
+			return MadView.this.getTargetWidth();
+		}
+
+		public int getTargetHeight() {
+			return bannerHeight;
+		}
+
+		public void onBatchLoaded(Ad ad, boolean prefetch) {
+			onAdFetched(ad, prefetch);
+		}
+	};
+
 	// used for execution in the ui main thread
 	private final Runnable mUpdateResults = new Runnable() {
 		public void run() {
@@ -411,97 +588,80 @@ public class MadView extends LinearLayout {
 	@Override
 	public void onWindowFocusChanged(boolean hasWindowFocus) {
 	    MadUtil.logMessage(null, Log.DEBUG, "#### onWindowFocusChanged fired ####");
-		refreshAdTimer(hasWindowFocus);
+		windowFocused = hasWindowFocus;
+		updateRefreshAdTimer();
 		super.onWindowFocusChanged(hasWindowFocus);
 	}
 
 	@Override
 	protected void onAttachedToWindow() {
 	    MadUtil.logMessage(null, Log.DEBUG, "#### onAttachedToWindow fired ####");
-		refreshAdTimer(true);
+		attached = true;
+		MadLocationService.onViewAttached();
+		viewabilityTracker.start();
 		super.onAttachedToWindow();
 	}
 
 	@Override
 	protected void onDetachedFromWindow() {
 	    MadUtil.logMessage(null, Log.DEBUG, "#### onDetachedFromWindow fired ####");
-		refreshAdTimer(false);
+		attached = false;
+		MadLocationService.onViewDetached();
+		viewabilityTracker.stop();
+		updateRefreshAdTimer();
 		super.onDetachedFromWindow();
 	}
 
 	/**
-	 * Convenicence method for a shiny background for text ads
-	 * 
-	 * @param rect
-	 * @param backgroundColor
-	 * @param textColor
-	 * @return
+	 * Starts or pauses the refresh schedule, depending on whether the ad can be seen. A refresh,
+	 * that became due while the ad could not be seen, is fired right away, when it can be seen
+	 * again.
 	 */
-	private BitmapDrawable generateBackgroundDrawable(Rect rect, int backgroundColor, int shineColor) {
-		try {
-			Bitmap bitmap = Bitmap.createBitmap(rect.width(), rect.height(), Bitmap.Config.ARGB_8888);
-			Canvas canvas = new Canvas(bitmap);
-			drawTextBannerBackground(canvas, rect, backgroundColor, shineColor);
-			return new BitmapDrawable(bitmap);
-		} catch (Throwable t) {
-			return null;
-		}
+	private void updateRefreshAdTimer() {
+		refreshAdTimer(attached && windowFocused && viewabilityTracker.isViewable());
 	}
 
 	/**
-	 * Draw the ad background for a text banner
-	 * 
-	 * @param canvas
-	 * @param rectangle
-	 * @param backgroundColor
-	 * @param textColor
-	 */
-	private void drawTextBannerBackground(Canvas canvas, Rect rectangle, int backgroundColor, int shineColor) {
-		Paint paint = new Paint();
-		paint.setColor(backgroundColor);
-		paint.setAntiAlias(true);
-		canvas.drawRect(rectangle, paint);
-
-		int upperColor = Color.argb(GRADIENT_TOP_ALPHA, Color.red(shineColor), Color.green(shineColor), Color.blue(shineColor));
-		int[] gradientColors = { upperColor, shineColor };
-		GradientDrawable gradientDrawable = new GradientDrawable(GradientDrawable.Orientation.TOP_BOTTOM, gradientColors);
-
-		int stop = (int) (rectangle.height() * GRADIENT_STOP) + rectangle.top;
-		gradientDrawable.setBounds(rectangle.left, rectangle.top, rectangle.right, stop);
-		gradientDrawable.draw(canvas);
-
-		Rect shadowRect = new Rect(rectangle.left, stop, rectangle.right, rectangle.bottom);
-		Paint shadowPaint = new Paint();
-		shadowPaint.setColor(shineColor);
-		canvas.drawRect(shadowRect, shadowPaint);
-	}
-
-	/**
-	 * Handles the refresh timer
+	 * Handles the refresh schedule. Stopping only pauses the schedule of this view, it is
+	 * continued where it stopped, when the view is started again.
 	 * @param starting
 	 */
 	private void refreshAdTimer(boolean starting) {
 		synchronized (this) {
 			if (starting) {
-				if (adTimer == null) {
-					adTimer = new Timer();
-					adTimer.schedule(new TimerTask() {
-						public void run() {
-						    MadUtil.logMessage(null, Log.DEBUG, "Refreshing ad ...");
-							requestNewAd();
-						}
-					}, (long) 0, (long) secondsToRefreshAd * 1000);
+				if (refreshEntry == null) {
+					refreshEntry = MadRefreshScheduler.createEntry(refreshTask, refreshPolicy.getIntervalMillis());
+					// time to first ad does not depend on the network
+					if (currentAd == null) MadExecutor.execute(showInventoryAdTask);
 				}
+				MadRefreshScheduler.resume(refreshEntry);
 			} else {
-				if (adTimer != null) {
-				    MadUtil.logMessage(null, Log.DEBUG, "Stopping refresh timer ...");
-					adTimer.cancel();
-					adTimer = null;
+				if (refreshEntry != null) {
+				    MadUtil.logMessage(null, Log.DEBUG, "Pausing refresh timer ...");
+					MadRefreshScheduler.pause(refreshEntry);
 				}
+				mHandler.removeCallbacks(mPrefetch);
+				MadConnectivityMonitor.cancel(deferredFetch);
+				MadConnectivityMonitor.cancel(mPrefetch);
 			}
 		}
 	}
 
+	// executed by the refresh scheduler in the ui main thread, shows a prefetched ad if available
+	private final Runnable refreshTask = new Runnable() {
+		public void run() {
+		    MadUtil.logMessage(null, Log.DEBUG, "Refreshing ad ...");
+			Ad prefetchedAd = prefetchQueue.poll();
+			if (prefetchedAd != null) {
+			    MadUtil.logMessage(null, Log.DEBUG, "Showing prefetched ad");
+				currentAd = prefetchedAd;
+				refreshView();
+			} else {
+				requestNewAd(false);
+			}
+		}
+	};
+
 	@Override
 	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 		super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -509,37 +669,6 @@ public class MadView extends LinearLayout {
 		setMeasuredDimension(width, bannerHeight);
 	}
 
-	/**
-	 * Returns the MD5 hash for a string.
-	 * 
-	 * @param input
-	 * @return md5 hash
-	 */
-	private String getMD5Hash(String input) {
-		MessageDigest messageDigest = null;
-
-		try {
-			messageDigest = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			MadUtil.logMessage(null, Log.DEBUG, "Could not create hash value");
-			return "";
-		}
-		messageDigest.update(input.getBytes());
-		String temp = null;
-		byte[] digest = messageDigest.digest();
-		StringBuffer hexString = new StringBuffer();
-		for (int i = 0; i < digest.length; i++) {
-			temp = Integer.toHexString(0xFF & digest[i]);
-			if (temp.length() < 2) {
-				temp = "0" + temp;
-			}
-			hexString.append(temp);
-		}
-		return hexString.toString();
-	}
-
-	
 	/**
 	 * Removes the current listener that receives notifications about the ad loading process	
 	 */
@@ -564,6 +693,85 @@ public class MadView extends LinearLayout {
 		callbackListener = listener;
 	}
 
+	/**
+	 * Phases of an ad refresh, that are measured by the SDK
+	 */
+	public enum LatencyPhase {
+		/** building or looking up the device and app parameters of a request */
+		CONTEXT_BUILD,
+		/** DNS lookup and TCP connect, only for requests, that cannot reuse a connection */
+		CONNECT,
+		/** from sending an ad request until the response headers are received */
+		FIRST_BYTE,
+		/** reading and parsing the ad response */
+		PARSE,
+		/** downloading the banner, or reading it from the creative cache */
+		BANNER_DOWNLOAD,
+		/** decoding the banner */
+		DECODE,
+		/** showing a new ad in the view */
+		UI_SWAP
+	}
+
+	/**
+	 * Sets a listener, that receives every latency measurement of all ad views. The listener is
+	 * called on the thread, that executed the phase, and must return quickly.
+	 * 
+	 * @param listener
+	 *            the listener or null to remove it
+	 */
+	public static void setLatencyListener(MadLatencyListener listener) {
+		MadLatencyTracker.setListener(listener);
+	}
+
+	/**
+	 * Returns a percentile of the measured durations of a phase since the process started
+	 * 
+	 * @param phase
+	 * @param percentile
+	 *            0 to 100, e.g. 95
+	 * @return duration in microseconds, accurate to 12.5 %, 0 if the phase was not measured yet
+	 */
+	public static long getLatencyPercentile(LatencyPhase phase, double percentile) {
+		return MadLatencyTracker.getHistogram(phase).getPercentile(percentile);
+	}
+
+	/**
+	 * Exports count, mean, p50, p95, p99 and max of all phases since the process started, one line
+	 * per phase
+	 * 
+	 * @return the report
+	 */
+	public static String getLatencyReport() {
+		return MadLatencyTracker.getReport();
+	}
+
+	/**
+	 * Exports the state of the background executor, that is shared by all ad views: threads in the
+	 * pool, tasks running and waiting, and tasks rejected since the process started, because the
+	 * queue was full
+	 * 
+	 * @return the report, one line
+	 */
+	public static String getExecutorReport() {
+		return MadExecutor.getReport();
+	}
+
+	/**
+	 * Interface to receive latency measurements of the ad refresh phases
+	 */
+	public interface MadLatencyListener {
+		/**
+		 * Notifies the listener about a measured phase
+		 * 
+		 * @param phase
+		 *            the measured phase
+		 * @param micros
+		 *            duration in microseconds
+		 */
+		public void onLatencyMeasured(LatencyPhase phase, long micros);
+	}
+
 	/**
 	 * Interface to receive a callback, if the ad loading was successful or not
 	 */
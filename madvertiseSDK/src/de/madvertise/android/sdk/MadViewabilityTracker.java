@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.view.View;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+
+/**
+ * Tracks, whether enough of an ad view can be seen on the screen. The view is checked after every
+ * layout and scroll of its window, so a view, that is scrolled out of a list or a scroll view, or
+ * that is hidden together with its parent, is reported as not viewable.
+ * <p>
+ * The visibility flag of the view itself is ignored: an ad view stays invisible until its first ad
+ * is loaded and must be able to request that ad.
+ */
+class MadViewabilityTracker {
+
+	// share of the view, that must be on the screen
+	private static final int MIN_VISIBLE_PERCENT = 50;
+
+	/**
+	 * Receives changes of the viewability on the main thread
+	 */
+	interface Listener {
+		void onViewabilityChanged(boolean viewable);
+	}
+
+	private final View view;
+	private final Listener listener;
+	private final Handler handler = new Handler();
+	private final Rect visibleRect = new Rect();
+
+	private ViewTreeObserver observer = null;
+	private boolean viewable = false;
+	private boolean checkPending = false;
+
+	private final ViewTreeObserver.OnGlobalLayoutListener layoutListener = new ViewTreeObserver.OnGlobalLayoutListener() {
+		public void onGlobalLayout() {
+			scheduleCheck();
+		}
+	};
+
+	private final ViewTreeObserver.OnScrollChangedListener scrollListener = new ViewTreeObserver.OnScrollChangedListener() {
+		public void onScrollChanged() {
+			scheduleCheck();
+		}
+	};
+
+	// coalesces all layout and scroll events of a frame into a single check
+	private final Runnable check = new Runnable() {
+		public void run() {
+			checkPending = false;
+			check();
+		}
+	};
+
+	MadViewabilityTracker(View view, Listener listener) {
+		this.view = view;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts tracking, must be called, when the view is attached to its window
+	 */
+	protected void start() {
+		stop();
+		observer = view.getViewTreeObserver();
+		observer.addOnGlobalLayoutListener(layoutListener);
+		observer.addOnScrollChangedListener(scrollListener);
+		scheduleCheck();
+	}
+
+	/**
+	 * Stops tracking and reports the view as not viewable
+	 */
+	protected void stop() {
+		if (observer != null) {
+			if (observer.isAlive()) {
+				observer.removeGlobalOnLayoutListener(layoutListener);
+				observer.removeOnScrollChangedListener(scrollListener);
+			}
+			observer = null;
+		}
+		handler.removeCallbacks(check);
+		checkPending = false;
+		setViewable(false);
+	}
+
+	/**
+	 * Checks the view with the next message, e.g. after a visibility change, that does not cause a
+	 * layout.
+	 */
+	protected void scheduleCheck() {
+		if (observer == null || checkPending) return;
+		checkPending = true;
+		handler.post(check);
+	}
+
+	protected boolean isViewable() {
+		return viewable;
+	}
+
+	private void check() {
+		if (observer == null) return;
+		setViewable(computeViewable());
+	}
+
+	private boolean computeViewable() {
+		if (view.getWindowVisibility() != View.VISIBLE || view.getVisibility() == View.GONE) return false;
+
+		ViewParent parent = view.getParent();
+		if (parent instanceof View && !((View) parent).isShown()) return false;
+
+		long area = (long) view.getWidth() * view.getHeight();
+		if (area == 0 || !view.getGlobalVisibleRect(visibleRect)) return false;
+
+		long visibleArea = (long) visibleRect.width() * visibleRect.height();
+		return visibleArea * 100 >= area * MIN_VISIBLE_PERCENT;
+	}
+
+	private void setViewable(boolean newViewable) {
+		if (viewable == newViewable) return;
+		viewable = newViewable;
+		listener.onViewabilityChanged(newViewable);
+	}
+}
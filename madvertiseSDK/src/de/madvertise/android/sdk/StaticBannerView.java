@@ -23,11 +23,37 @@ import android.widget.ImageView;
  * Simple view to show a non animated ad. 
  */
 public class StaticBannerView extends ImageView {
-	
+
+	private boolean ignoreLayoutRequest = false;
+	private int bannerWidth = -1;
+	private int bannerHeight = -1;
+
 	public StaticBannerView(Context context, Bitmap bannerBitmap) {
 		super(context);
-		if (bannerBitmap != null) {
-			this.setImageBitmap(bannerBitmap);
+		setBannerBitmap(bannerBitmap);
+	}
+
+	/**
+	 * Shows a new banner. The view is only laid out again, if the size of the
+	 * banner changed, otherwise it is just redrawn.
+	 * 
+	 * @param bannerBitmap
+	 */
+	protected void setBannerBitmap(Bitmap bannerBitmap) {
+		if (bannerBitmap == null) return;
+
+		ignoreLayoutRequest = bannerBitmap.getWidth() == bannerWidth && bannerBitmap.getHeight() == bannerHeight;
+		try {
+			setImageBitmap(bannerBitmap);
+		} finally {
+			ignoreLayoutRequest = false;
 		}
+		bannerWidth = bannerBitmap.getWidth();
+		bannerHeight = bannerBitmap.getHeight();
+	}
+
+	@Override
+	public void requestLayout() {
+		if (!ignoreLayoutRequest) super.requestLayout();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.Shader;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Shiny background for text banners. The background color is covered by a gradient of the shine
+ * color in the upper part and by the shine color in the lower part. The drawable is drawn with a
+ * shader at its current bounds, it does not need a backing bitmap, no matter how large the view
+ * is.
+ */
+class TextBannerBackground extends Drawable {
+
+	// parameters for shine effect of the textview banner
+	private static final int GRADIENT_TOP_ALPHA = (int) (255 * 0.50);
+	private static final double GRADIENT_STOP = 0.7375;
+
+	private final int shineColor;
+	private final Paint backgroundPaint = new Paint();
+	private final Paint gradientPaint = new Paint();
+	private final Paint shadowPaint = new Paint();
+	private int gradientStop;
+
+	/**
+	 * @param backgroundColor
+	 * @param shineColor
+	 */
+	TextBannerBackground(int backgroundColor, int shineColor) {
+		this.shineColor = shineColor;
+		backgroundPaint.setColor(backgroundColor);
+		backgroundPaint.setAntiAlias(true);
+		shadowPaint.setColor(shineColor);
+	}
+
+	@Override
+	protected void onBoundsChange(Rect bounds) {
+		super.onBoundsChange(bounds);
+		gradientStop = (int) (bounds.height() * GRADIENT_STOP) + bounds.top;
+
+		int upperColor = Color.argb(GRADIENT_TOP_ALPHA, Color.red(shineColor), Color.green(shineColor), Color.blue(shineColor));
+		gradientPaint.setShader(new LinearGradient(0, bounds.top, 0, gradientStop, upperColor, shineColor, Shader.TileMode.CLAMP));
+	}
+
+	@Override
+	public void draw(Canvas canvas) {
+		Rect bounds = getBounds();
+		canvas.drawRect(bounds, backgroundPaint);
+		canvas.drawRect(bounds.left, bounds.top, bounds.right, gradientStop, gradientPaint);
+		canvas.drawRect(bounds.left, gradientStop, bounds.right, bounds.bottom, shadowPaint);
+	}
+
+	@Override
+	public void setAlpha(int alpha) {
+		backgroundPaint.setAlpha(alpha);
+		gradientPaint.setAlpha(alpha);
+		shadowPaint.setAlpha(alpha);
+		invalidateSelf();
+	}
+
+	@Override
+	public void setColorFilter(ColorFilter colorFilter) {
+		backgroundPaint.setColorFilter(colorFilter);
+		gradientPaint.setColorFilter(colorFilter);
+		shadowPaint.setColorFilter(colorFilter);
+		invalidateSelf();
+	}
+
+	@Override
+	public int getOpacity() {
+		return PixelFormat.TRANSLUCENT;
+	}
+}
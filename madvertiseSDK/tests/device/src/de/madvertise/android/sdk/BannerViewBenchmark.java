@@ -0,0 +1,207 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.View;
+import android.view.View.MeasureSpec;
+import android.widget.LinearLayout;
+
+/**
+ * Measures the layout passes and the allocations of the ui thread, that a refresh costs, when the
+ * banner view of {@link MadView} is reused, and when it is replaced by a new view, as MadView did
+ * before. Static and animated banners of the same size are shown one after another.
+ */
+public class BannerViewBenchmark extends InstrumentationTestCase {
+
+	private static final String TAG = "MAD_BENCHMARK";
+	private static final int REFRESHES = 200;
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 53;
+
+	private Context context;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = getInstrumentation().getTargetContext();
+	}
+
+	public void testStaticBanner() {
+		final Bitmap[] banners = new Bitmap[] { Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565),
+				Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565) };
+
+		Result reused = measure(new Refresh() {
+			private StaticBannerView bannerView = null;
+
+			public void show(AdContainer container, int refresh) {
+				if (bannerView == null) bannerView = new StaticBannerView(context, null);
+				bannerView.setBannerBitmap(banners[refresh % 2]);
+				container.showBannerView(bannerView);
+			}
+		});
+		Result replaced = measure(new Refresh() {
+			public void show(AdContainer container, int refresh) {
+				container.replaceBannerView(new StaticBannerView(context, banners[refresh % 2]));
+			}
+		});
+
+		report("static", reused, replaced);
+		// only the first banner is laid out
+		assertEquals(1, reused.layoutPasses);
+		assertEquals(REFRESHES, replaced.layoutPasses);
+		assertTrue(reused.allocatedBytes < replaced.allocatedBytes);
+	}
+
+	public void testAnimatedBanner() throws IOException {
+		byte[] gifData = readAsset("animated.gif");
+		// two ads with the same creative, setGif ignores the same array
+		final byte[][] gifs = new byte[][] { gifData, gifData.clone() };
+		final Bitmap firstFrame = BitmapFactory.decodeByteArray(gifData, 0, gifData.length);
+
+		Result reused = measure(new Refresh() {
+			private AnimatedBannerView bannerView = null;
+
+			public void show(AdContainer container, int refresh) {
+				if (bannerView == null) bannerView = new AnimatedBannerView(context);
+				bannerView.setGif(gifs[refresh % 2], firstFrame);
+				container.showBannerView(bannerView);
+			}
+		});
+		Result replaced = measure(new Refresh() {
+			public void show(AdContainer container, int refresh) {
+				AnimatedBannerView bannerView = new AnimatedBannerView(context);
+				bannerView.setGif(gifs[refresh % 2], firstFrame);
+				container.replaceBannerView(bannerView);
+			}
+		});
+
+		report("animated", reused, replaced);
+		assertEquals(1, reused.layoutPasses);
+		assertEquals(REFRESHES, replaced.layoutPasses);
+		assertTrue(reused.allocatedBytes < replaced.allocatedBytes);
+	}
+
+	/**
+	 * Shows the banner of one refresh
+	 */
+	private interface Refresh {
+		void show(AdContainer container, int refresh);
+	}
+
+	private static class Result {
+		private int layoutPasses = 0;
+		private long layoutNanos = 0;
+		private long allocatedBytes;
+		private int allocatedObjects;
+		private long nanos;
+	}
+
+	/**
+	 * Runs the refreshes on the ui thread, like MadView, and lays out the container after each
+	 * refresh, that requested it
+	 */
+	private Result measure(final Refresh refresh) {
+		final Result result = new Result();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			public void run() {
+				AdContainer container = new AdContainer(context);
+				int widthSpec = MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY);
+				int heightSpec = MeasureSpec.makeMeasureSpec(HEIGHT, MeasureSpec.EXACTLY);
+
+				Debug.resetThreadAllocCount();
+				Debug.resetThreadAllocSize();
+				Debug.startAllocCounting();
+				long start = System.nanoTime();
+				for (int i = 0; i < REFRESHES; i++) {
+					refresh.show(container, i);
+					if (container.isLayoutRequested()) {
+						long layoutStart = System.nanoTime();
+						container.measure(widthSpec, heightSpec);
+						container.layout(0, 0, WIDTH, HEIGHT);
+						result.layoutNanos += System.nanoTime() - layoutStart;
+						result.layoutPasses++;
+					}
+				}
+				result.nanos = System.nanoTime() - start;
+				Debug.stopAllocCounting();
+				result.allocatedBytes = Debug.getThreadAllocSize();
+				result.allocatedObjects = Debug.getThreadAllocCount();
+			}
+		});
+		return result;
+	}
+
+	private static void report(String bannerType, Result reused, Result replaced) {
+		Log.i(TAG, "Per refresh of a " + bannerType + " banner: reused view " + describe(reused) + ", new view "
+				+ describe(replaced));
+	}
+
+	private static String describe(Result result) {
+		return (float) result.layoutPasses / REFRESHES + " layout passes (" + result.layoutNanos / REFRESHES / 1000 + " us), "
+				+ result.allocatedObjects / REFRESHES + " objects, " + result.allocatedBytes / REFRESHES + " bytes, "
+				+ result.nanos / REFRESHES / 1000 + " us";
+	}
+
+	private byte[] readAsset(String name) throws IOException {
+		InputStream inputStream = getInstrumentation().getContext().getAssets().open(name);
+		try {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int count;
+			while ((count = inputStream.read(buffer)) != -1) {
+				data.write(buffer, 0, count);
+			}
+			return data.toByteArray();
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Stands in for MadView, which also sends requests. Shows the banner view as its only child.
+	 */
+	private static class AdContainer extends LinearLayout {
+
+		private AdContainer(Context context) {
+			super(context);
+		}
+
+		// as MadView.showBannerView
+		private void showBannerView(View bannerView) {
+			if (getChildCount() == 1 && getChildAt(0) == bannerView) return;
+
+			removeAllViews();
+			bannerView.setVisibility(VISIBLE);
+			addView(bannerView);
+		}
+
+		// as MadView did before the banner views were reused
+		private void replaceBannerView(View bannerView) {
+			removeAllViews();
+			addView(bannerView);
+		}
+	}
+}
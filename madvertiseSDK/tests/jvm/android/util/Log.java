@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM replacement of the framework log, the methods of the android.jar stub are native. Tags are
+ * not loggable, until a test enables them, like "setprop log.tag.&lt;tag&gt;" on a device.
+ */
+public final class Log {
+
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int ASSERT = 7;
+
+	private static final Map<String, Integer> levels = new HashMap<String, Integer>();
+	private static int printedCount = 0;
+
+	private Log() {
+	}
+
+	public static synchronized boolean isLoggable(String tag, int level) {
+		Integer enabledLevel = levels.get(tag);
+		return enabledLevel != null && level >= enabledLevel.intValue();
+	}
+
+	public static synchronized int println(int priority, String tag, String msg) {
+		printedCount++;
+		return msg.length();
+	}
+
+	public static String getStackTraceString(Throwable tr) {
+		if (tr == null) return "";
+		StringWriter writer = new StringWriter();
+		tr.printStackTrace(new PrintWriter(writer));
+		return writer.toString();
+	}
+
+	/**
+	 * Enables a tag from the given level on, null disables it again. Not part of the framework.
+	 */
+	public static synchronized void setLoggable(String tag, Integer level) {
+		if (level == null) {
+			levels.remove(tag);
+		} else {
+			levels.put(tag, level);
+		}
+	}
+
+	/**
+	 * @return number of printed messages. Not part of the framework.
+	 */
+	public static synchronized int getPrintedCount() {
+		return printedCount;
+	}
+}
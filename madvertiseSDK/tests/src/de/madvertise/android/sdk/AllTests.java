@@ -0,0 +1,40 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * All JVM tests of the SDK
+ */
+public class AllTests {
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("madvertise SDK");
+		suite.addTestSuite(MadAdParserTest.class);
+		suite.addTestSuite(MadAdRequestTest.class);
+		suite.addTestSuite(MadBatchRequestTest.class);
+		suite.addTestSuite(MadCreativeCacheTest.class);
+		suite.addTestSuite(MadGifDecoderTest.class);
+		suite.addTestSuite(MadHttpTransportTest.class);
+		suite.addTestSuite(MadLocationServiceTest.class);
+		suite.addTestSuite(MadRequestBodyTest.class);
+		suite.addTestSuite(MadUtilLoggingTest.class);
+		suite.addTestSuite(MadUtilReadStreamTest.class);
+		return suite;
+	}
+}
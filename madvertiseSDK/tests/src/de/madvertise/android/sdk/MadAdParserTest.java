@@ -0,0 +1,203 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Round trips of ad responses through the streaming parser, with org.json as the independent
+ * writer, and a benchmark against the path, it replaced: reading the response line by line into a
+ * string and parsing it into a JSONObject.
+ */
+public class MadAdParserTest extends TestCase {
+
+	private static final int ROUNDS = 20000;
+
+	// a typical response, with fields the parser skips
+	private static final String RESPONSE = "{\"click_url\":\"http://ad.madvertise.de/click/8ad3f72b?site=TestTokn&amp;uid=0123456789abcdef\","
+			+ "\"banner_url\":\"http://ad.madvertise.de/banner/8ad3f72b.gif\",\"text\":\"Jetzt kostenlos testen \\u2013 nur f\\u00fcr kurze Zeit!\","
+			+ "\"has_banner\":true,\"banner_type\":\"mma\",\"width\":320,\"height\":53,\"markup\":null,"
+			+ "\"tracking\":{\"impression\":[\"http://ad.madvertise.de/imp/1\",\"http://ad.madvertise.de/imp/2\"],\"click\":[]},"
+			+ "\"ttl\":3600,\"debug\":{\"campaign\":4711,\"weights\":[0.25,0.5,1e-3]}}\n";
+
+	// keeps the parsed ads alive, so the parsing is not optimized away
+	private static volatile Object sink;
+
+	public void testRoundTripOfSingleAd() throws Exception {
+		Random random = new Random(11);
+		for (int i = 0; i < 500; i++) {
+			JSONObject json = createAd(random);
+			List<MadAdParser.AdData> ads = parse(json.toString());
+			assertEquals(1, ads.size());
+			assertAd(json, ads.get(0));
+		}
+	}
+
+	public void testRoundTripOfBatch() throws Exception {
+		Random random = new Random(19);
+		JSONArray json = new JSONArray();
+		// org.json writes compact json, so the array gets whitespace between its elements
+		StringBuilder response = new StringBuilder("[ ");
+		for (int i = 0; i < 8; i++) {
+			json.put(i % 3 == 1 ? JSONObject.NULL : createAd(random));
+			if (i > 0) response.append(" ,\n\t");
+			response.append(json.get(i));
+		}
+		List<MadAdParser.AdData> ads = parse(response.append("\r\n]").toString());
+
+		assertEquals(json.length(), ads.size());
+		for (int i = 0; i < json.length(); i++) {
+			if (json.isNull(i)) {
+				assertNull(ads.get(i));
+			} else {
+				assertAd(json.getJSONObject(i), ads.get(i));
+			}
+		}
+	}
+
+	public void testMissingAndNullFields() throws Exception {
+		MadAdParser.AdData ad = parse("{\"click_url\":null,\"banner_url\":{\"nested\":1},\"unknown\":[1,{\"text\":\"x\"}]}").get(0);
+		assertEquals("", ad.clickURL);
+		assertEquals("", ad.bannerURL);
+		assertEquals("", ad.text);
+		assertTrue(ad.hasBannerLink);
+
+		assertFalse(parse("{\"has_banner\":false}").get(0).hasBannerLink);
+		assertFalse(parse("{\"has_banner\":\"false\"}").get(0).hasBannerLink);
+		assertTrue(parse("{\"has_banner\":null}").get(0).hasBannerLink);
+	}
+
+	public void testInvalidResponsesFail() {
+		String[] responses = new String[] { "", "  ", "<html>", "{\"click_url\":\"http://mad", "{\"click_url\" \"x\"}",
+				"[{\"text\":\"a\"} {\"text\":\"b\"}]", "[nul]", "{\"text\":\"\\uZZZZ\"}", RESPONSE.substring(0, RESPONSE.length() / 2) };
+		for (int i = 0; i < responses.length; i++) {
+			try {
+				parse(responses[i]);
+				fail("accepted invalid response: " + responses[i]);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testBenchmarkAgainstJsonObject() throws Exception {
+		byte[] response = RESPONSE.getBytes(MadUtil.ENCODING);
+		// both paths read the same fields
+		MadAdParser.AdData streamed = MadAdParser.parse(new ByteArrayInputStream(response)).get(0);
+		assertAd(parseWithJsonObject(new ByteArrayInputStream(response)), streamed);
+
+		// warm up, so class loading and compilation are not measured
+		for (int i = 0; i < ROUNDS; i++) {
+			sink = MadAdParser.parse(new ByteArrayInputStream(response));
+			sink = parseWithJsonObject(new ByteArrayInputStream(response));
+		}
+
+		long[] pullParser = measure(response, true);
+		long[] jsonObject = measure(response, false);
+		System.out.println("Parsing a response of " + response.length + " bytes: pull parser " + pullParser[0] + " ns, "
+				+ pullParser[1] + " bytes, readLine and JSONObject " + jsonObject[0] + " ns, " + jsonObject[1] + " bytes");
+
+		assertTrue(pullParser[1] < jsonObject[1]);
+	}
+
+	/**
+	 * @return nanoseconds and allocated bytes per response
+	 */
+	private static long[] measure(byte[] response, boolean pullParser) throws Exception {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = bean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			InputStream inputStream = new ByteArrayInputStream(response);
+			sink = pullParser ? MadAdParser.parse(inputStream) : parseWithJsonObject(inputStream);
+		}
+		long nanos = System.nanoTime() - start;
+		long bytes = bean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		return new long[] { nanos / ROUNDS, bytes / ROUNDS };
+	}
+
+	// the parsing before the pull parser, see MadUtil.convertStreamToString and the json constructor of Ad
+	private static JSONObject parseWithJsonObject(InputStream inputStream) throws IOException, JSONException {
+		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
+		StringBuilder stringBuilder = new StringBuilder();
+		String line = null;
+		while ((line = bufferedReader.readLine()) != null) {
+			stringBuilder.append(line + "\n");
+		}
+		inputStream.close();
+
+		JSONObject json = new JSONObject(stringBuilder.toString());
+		JSONArray jsonNames = json.names();
+		sink = json.toJSONArray(jsonNames);
+		sink = json.isNull("click_url") ? "" : json.getString("click_url");
+		sink = json.isNull("banner_url") ? "" : json.getString("banner_url");
+		sink = json.isNull("text") ? "" : json.getString("text");
+		sink = Boolean.valueOf(json.isNull("has_banner") ? "true" : json.getString("has_banner"));
+		return json;
+	}
+
+	private static List<MadAdParser.AdData> parse(String response) throws IOException {
+		return MadAdParser.parse(new ByteArrayInputStream(response.getBytes(MadUtil.ENCODING)));
+	}
+
+	private static void assertAd(JSONObject expected, MadAdParser.AdData actual) throws JSONException {
+		assertEquals(expected.getString("click_url"), actual.clickURL);
+		assertEquals(expected.getString("banner_url"), actual.bannerURL);
+		assertEquals(expected.getString("text"), actual.text);
+		assertEquals(expected.getBoolean("has_banner"), actual.hasBannerLink);
+	}
+
+	private static JSONObject createAd(Random random) throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("click_url", "http://ad.madvertise.de/click/" + random.nextInt(100000) + "?q=" + createText(random, 8));
+		json.put("banner_url", "http://ad.madvertise.de/banner/" + random.nextInt(100000) + ".gif");
+		json.put("text", createText(random, 60));
+		json.put("has_banner", random.nextBoolean());
+		json.put("width", random.nextInt(500));
+		json.put("tracking", new JSONArray().put(createText(random, 10)).put(new JSONObject().put("text", "nested")));
+		return json;
+	}
+
+	// ascii, umlauts, symbols, surrogate pairs, quotes, backslashes, slashes and control chars
+	private static String createText(Random random, int maxLength) {
+		String chars = "aZ09 \u00e4\u00f6\u00fc\u00df\u20ac\"\\/\b\f\n\r\t\u0001{}[],:";
+		StringBuilder text = new StringBuilder();
+		int length = random.nextInt(maxLength + 1);
+		for (int i = 0; i < length; i++) {
+			if (random.nextInt(20) == 0) {
+				// U+1F600
+				text.append("\ud83d\ude00");
+			} else {
+				text.append(chars.charAt(random.nextInt(chars.length())));
+			}
+		}
+		return text.toString();
+	}
+}
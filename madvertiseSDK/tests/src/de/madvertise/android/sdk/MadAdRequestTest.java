@@ -0,0 +1,182 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Sends ad requests to a local stub server and checks, which failures are retried: timeouts,
+ * network errors and server errors are, within the deadline budget of the request; invalid
+ * responses and client errors are not, as the server already answered them.
+ */
+public class MadAdRequestTest extends TestCase {
+
+	private static final String AD = "{\"click_url\":\"http://madvertise.de/click/1\",\"has_banner\":false}";
+
+	private StubAdServer server;
+	private MadRequestContext requestContext;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new StubAdServer();
+		MadUtil.setServerUrl(server.getUrl());
+		requestContext = new MadRequestContext("TestTokn", "0123456789abcdef", "10.0.0.1", "Mozilla/5.0", 480, 800, null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		MadUtil.setServerUrl(null);
+		server.stop();
+	}
+
+	public void testServerErrorIsRetried() throws Exception {
+		server.enqueue(StubAdServer.respond(503, "text/plain", new byte[0], false)).enqueue(StubAdServer.respondJson(AD));
+
+		Result result = execute(1);
+		assertTrue(result.await(10000));
+		assertEquals(2, server.getRequestCount());
+		assertEquals("http://madvertise.de/click/1", result.ads.get(0).clickURL);
+	}
+
+	public void testInvalidResponsesAreNotRetried() throws Exception {
+		String[] responses = new String[] { "", "{\"click_url\":\"http://madvertise.de/cl", "<html>Service Unavailable</html>" };
+		for (int i = 0; i < responses.length; i++) {
+			server.enqueue(StubAdServer.respondJson(responses[i]));
+		}
+		// answers any retry
+		server.enqueue(StubAdServer.respondJson(AD));
+
+		for (int i = 0; i < responses.length; i++) {
+			Result result = execute(2);
+			// a kept alive connection, that the stub server reset, is retried before it gets a
+			// response, so only the answered requests count
+			assertTrue(result.await(10000));
+			assertNull("response " + i, result.ads);
+			// a retry of an invalid response would have taken the next one
+			assertEquals("response " + i, i + 1, server.getRequestCount());
+		}
+	}
+
+	public void testClientErrorIsNotRetried() throws Exception {
+		server.enqueue(StubAdServer.respond(404, "text/plain", new byte[0], false)).enqueue(StubAdServer.respondJson(AD));
+
+		Result result = execute(2);
+		assertEquals(0, result.latch.getCount());
+		assertNull(result.ads);
+		assertEquals(1, server.getRequestCount());
+	}
+
+	public void testStalledResponseTimesOutAndIsRetried() throws Exception {
+		long budgetMillis = warmUp();
+		server.enqueue(StubAdServer.stall(3 * budgetMillis));
+
+		long start = System.currentTimeMillis();
+		Result result = execute(1);
+		assertTrue(result.await(3 * budgetMillis));
+		long millis = System.currentTimeMillis() - start;
+
+		assertNull(result.ads);
+		// the first byte timeout expired on both attempts
+		assertEquals(2, server.getRequestCount());
+		assertTrue("request took " + millis + " ms, budget " + budgetMillis + " ms", millis <= budgetMillis + 1000);
+	}
+
+	public void testSlowBodyFailsAtTheDeadline() throws Exception {
+		long budgetMillis = warmUp();
+		// every chunk arrives before the socket timeout, but the body takes far longer than the budget
+		server.enqueue(new StubAdServer.Responder() {
+			public void respond(HttpExchange exchange, StubAdServer.Request request) throws IOException {
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, 10000);
+				OutputStream output = exchange.getResponseBody();
+				try {
+					output.write("[".getBytes(MadUtil.ENCODING));
+					for (int i = 0; i < 100; i++) {
+						output.write(" ".getBytes(MadUtil.ENCODING));
+						output.flush();
+						Thread.sleep(500);
+					}
+				} catch (InterruptedException e) {
+					// server stopped
+				} catch (IOException e) {
+					// client gave up
+				}
+			}
+		});
+
+		long start = System.currentTimeMillis();
+		Result result = execute(1);
+		assertTrue(result.await(3 * budgetMillis));
+		long millis = System.currentTimeMillis() - start;
+
+		assertNull(result.ads);
+		// no budget is left for a retry
+		assertEquals(1, server.getRequestCount());
+		assertTrue("request took " + millis + " ms, budget " + budgetMillis + " ms", millis <= budgetMillis + 1000);
+		// the expired deadline is no socket timeout, the following requests keep their timeouts
+		assertTrue(new MadRequestBudget().getRemainingMillis() <= budgetMillis);
+	}
+
+	/**
+	 * Fast round trips shrink the timeouts, so a stalled request fails sooner
+	 *
+	 * @return total budget of the next request
+	 */
+	private long warmUp() throws Exception {
+		server.enqueue(StubAdServer.respondJson(AD));
+		for (int i = 0; i < 3; i++) {
+			assertNotNull(execute(0).ads);
+		}
+		server = restart();
+		return new MadRequestBudget().getRemainingMillis();
+	}
+
+	private StubAdServer restart() throws IOException {
+		server.stop();
+		StubAdServer newServer = new StubAdServer();
+		MadUtil.setServerUrl(newServer.getUrl());
+		return newServer;
+	}
+
+	private Result execute(int maxRetries) {
+		Result result = new Result();
+		MadAdRequest.execute(MadAdRequest.createPostRequest("/site/TestTokn", new MadRequestBody(requestContext, false)), false,
+				maxRetries, result);
+		return result;
+	}
+
+	private static class Result implements MadAdRequest.Callback {
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile List<MadAdParser.AdData> ads;
+
+		public void onResponse(List<MadAdParser.AdData> ads) {
+			this.ads = ads;
+			latch.countDown();
+		}
+
+		private boolean await(long millis) throws InterruptedException {
+			return latch.await(millis, TimeUnit.MILLISECONDS);
+		}
+	}
+}
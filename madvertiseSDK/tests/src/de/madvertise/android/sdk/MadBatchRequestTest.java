@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import android.content.Context;
+
+/**
+ * Sends batch requests to a local stub server, that answers every slot of the batch, and checks,
+ * that one request fills all slots.
+ */
+public class MadBatchRequestTest extends TestCase {
+
+	private static final String[] BANNER_TYPES = new String[] { "mma", "iab", "medium_rectangle" };
+
+	private StubAdServer server;
+	private MadRequestContext requestContext;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new StubAdServer();
+		MadUtil.setServerUrl(server.getUrl());
+		requestContext = new MadRequestContext("TestTokn", "0123456789abcdef", "10.0.0.1",
+				"Mozilla/5.0 (Linux; U; Android 2.1; de-de; Nexus One Build/ERD79)", 480, 800, null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		MadUtil.setServerUrl(null);
+		server.stop();
+	}
+
+	public void testOneRequestFillsAllSlots() {
+		server.enqueue(StubAdServer.respondJson("[{\"click_url\":\"http://madvertise.de/click/0\",\"text\":\"Ad 0\",\"has_banner\":false},"
+				+ " null, {\"click_url\":\"http://madvertise.de/click/2\",\"text\":\"Ad 2\",\"has_banner\":false}]"));
+
+		TestSlot[] slots = createSlots(BANNER_TYPES.length);
+		MadBatchRequest.sendBatchRequest(requestContext, createBatch(slots));
+
+		assertEquals(1, server.getRequestCount());
+		StubAdServer.Request request = server.getRequest(0);
+		assertEquals("/site/TestTokn/batch", request.path);
+		String body = request.getBodyAsString();
+		assertTrue(body, body.startsWith(requestContext.getEncodedParameters() + "&"));
+		assertTrue(body, body.contains("&slots=3&"));
+		for (int i = 0; i < slots.length; i++) {
+			assertTrue(body, body.contains("&banner_type_" + i + "=" + BANNER_TYPES[i]));
+			assertTrue(body, body.contains("&deliver_only_text_" + i + "=" + (i == 1)));
+		}
+
+		for (int i = 0; i < slots.length; i++) {
+			assertEquals(1, slots[i].calls);
+		}
+		assertEquals("http://madvertise.de/click/0", slots[0].ad.getClickURL());
+		assertEquals("Ad 0", slots[0].ad.getText());
+		assertNull(slots[1].ad);
+		assertEquals("http://madvertise.de/click/2", slots[2].ad.getClickURL());
+
+		// the common parameters are sent once instead of once per slot
+		int singleRequestBytes = 0;
+		for (int i = 0; i < slots.length; i++) {
+			singleRequestBytes += new MadRequestBody(requestContext, false).add("debug", "false").add("banner_type", BANNER_TYPES[i])
+					.add("deliver_only_text", Boolean.toString(i == 1)).toString().length();
+		}
+		System.out.println("Request bodies for " + slots.length + " slots: one batch request " + request.body.length + " bytes, "
+				+ slots.length + " single requests " + singleRequestBytes + " bytes");
+		assertTrue(request.body.length < singleRequestBytes);
+	}
+
+	public void testShortResponseLeavesRemainingSlotsEmpty() {
+		server.enqueue(StubAdServer.respondJson("[{\"click_url\":\"http://madvertise.de/click/0\",\"has_banner\":false}]"));
+
+		TestSlot[] slots = createSlots(BANNER_TYPES.length);
+		MadBatchRequest.sendBatchRequest(requestContext, createBatch(slots));
+
+		assertEquals(1, server.getRequestCount());
+		assertNotNull(slots[0].ad);
+		for (int i = 1; i < slots.length; i++) {
+			assertEquals(1, slots[i].calls);
+			assertNull(slots[i].ad);
+		}
+	}
+
+	public void testFailedRequestAnswersEverySlot() {
+		server.enqueue(StubAdServer.respond(404, "text/plain", new byte[0], false));
+
+		TestSlot[] slots = createSlots(BANNER_TYPES.length);
+		MadBatchRequest.sendBatchRequest(requestContext, createBatch(slots));
+
+		assertEquals(1, server.getRequestCount());
+		for (int i = 0; i < slots.length; i++) {
+			assertEquals(1, slots[i].calls);
+			assertNull(slots[i].ad);
+		}
+	}
+
+	public void testInvalidRequestAnswersEverySlotOnce() {
+		// a space is not valid in the path of the url
+		MadRequestContext invalidContext = new MadRequestContext("Test Tokn", "0123456789abcdef", "10.0.0.1",
+				"Mozilla/5.0 (Linux; U; Android 2.1; de-de; Nexus One Build/ERD79)", 480, 800, null);
+
+		TestSlot[] slots = createSlots(BANNER_TYPES.length);
+		MadBatchRequest.sendBatchRequest(invalidContext, createBatch(slots));
+
+		assertEquals(0, server.getRequestCount());
+		for (int i = 0; i < slots.length; i++) {
+			assertEquals(1, slots[i].calls);
+			assertNull(slots[i].ad);
+		}
+	}
+
+	private static TestSlot[] createSlots(int count) {
+		TestSlot[] slots = new TestSlot[count];
+		for (int i = 0; i < count; i++) {
+			slots[i] = new TestSlot(BANNER_TYPES[i], i == 1);
+		}
+		return slots;
+	}
+
+	private static List<MadBatchRequest.PendingSlot> createBatch(TestSlot[] slots) {
+		List<MadBatchRequest.PendingSlot> batch = new ArrayList<MadBatchRequest.PendingSlot>();
+		for (int i = 0; i < slots.length; i++) {
+			batch.add(new MadBatchRequest.PendingSlot(slots[i], false));
+		}
+		return batch;
+	}
+
+	private static class TestSlot implements MadBatchRequest.Slot {
+		private final String bannerType;
+		private final boolean deliverOnlyText;
+		private Ad ad;
+		private int calls = 0;
+
+		private TestSlot(String bannerType, boolean deliverOnlyText) {
+			this.bannerType = bannerType;
+			this.deliverOnlyText = deliverOnlyText;
+		}
+
+		public Context getContext() {
+			return null;
+		}
+
+		public String getBannerType() {
+			return bannerType;
+		}
+
+		public boolean isDeliverOnlyText() {
+			return deliverOnlyText;
+		}
+
+		public boolean isTestMode() {
+			return false;
+		}
+
+		public boolean isCompactRequests() {
+			return false;
+		}
+
+		public int getMaxRequestRetries() {
+			return 0;
+		}
+
+		public int getTargetWidth() {
+			return 320;
+		}
+
+		public int getTargetHeight() {
+			return 53;
+		}
+
+		public void onBatchLoaded(Ad ad, boolean prefetch) {
+			this.ad = ad;
+			calls++;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Reads and writes creatives in a temporary directory, including files, that were damaged on
+ * disk.
+ */
+public class MadCreativeCacheTest extends TestCase {
+
+	private static final String URL = "http://ads.example.com/banner/4711.gif";
+	// version, url, two absent validators and expiry time precede the length
+	private static final int LENGTH_OFFSET = 4 + 2 + URL.length() + 1 + 1 + 8;
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("creatives", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() {
+		File[] files = directory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		directory.delete();
+	}
+
+	public void testReadsStoredCreative() {
+		MadCreativeCache cache = new MadCreativeCache(directory);
+		byte[] data = createData(5 * 1024);
+		cache.put(URL, data, "\"abc\"", "Tue, 15 Nov 2011 12:45:26 GMT", 1234L);
+
+		MadCreativeCache.CachedCreative creative = cache.get(URL);
+		assertNotNull(creative);
+		assertTrue(Arrays.equals(data, creative.data));
+		assertEquals("\"abc\"", creative.eTag);
+		assertEquals("Tue, 15 Nov 2011 12:45:26 GMT", creative.lastModified);
+		assertEquals(1234L, creative.expires);
+		assertNull(cache.get("http://ads.example.com/banner/other.gif"));
+	}
+
+	public void testReadsCreativesOfPreviousProcess() {
+		byte[] data = createData(1024);
+		new MadCreativeCache(directory).put(URL, data, null, null, 0);
+
+		MadCreativeCache cache = new MadCreativeCache(directory);
+		assertEquals(new File(directory, getFileName()).length(), cache.getSize());
+		assertTrue(Arrays.equals(data, cache.get(URL).data));
+	}
+
+	public void testRemovesCreativeWithNegativeLength() throws IOException {
+		assertRemovesCreativeWithLength(-1);
+	}
+
+	public void testRemovesCreativeWithHugeLength() throws IOException {
+		// would have allocated 2 GB before the length was checked
+		assertRemovesCreativeWithLength(Integer.MAX_VALUE);
+	}
+
+	public void testRemovesCreativeLargerThanBanner() throws IOException {
+		assertRemovesCreativeWithLength(MadUtil.MAX_BANNER_SIZE + 1);
+	}
+
+	public void testRemovesTruncatedCreative() throws IOException {
+		MadCreativeCache cache = new MadCreativeCache(directory);
+		cache.put(URL, createData(1024), null, null, 0);
+
+		RandomAccessFile file = new RandomAccessFile(new File(directory, getFileName()), "rw");
+		try {
+			file.setLength(LENGTH_OFFSET + 4 + 100);
+		} finally {
+			file.close();
+		}
+
+		assertNull(cache.get(URL));
+		assertFalse(new File(directory, getFileName()).exists());
+		assertEquals(0, cache.getSize());
+	}
+
+	public void testEvictsEldestCreative() {
+		MadCreativeCache cache = new MadCreativeCache(directory);
+		for (int i = 0; i < 5; i++) {
+			cache.put(URL + "?" + i, createData(MadUtil.MAX_BANNER_SIZE), null, null, 0);
+		}
+
+		assertTrue(cache.getSize() <= 2 * 1024 * 1024);
+		assertNull(cache.get(URL + "?0"));
+		assertNotNull(cache.get(URL + "?4"));
+	}
+
+	public void testReadsWhileOtherThreadsWrite() throws InterruptedException {
+		final MadCreativeCache cache = new MadCreativeCache(directory);
+		final byte[] data1 = createData(64 * 1024);
+		final byte[] data2 = createData(32 * 1024);
+		cache.put(URL, data1, null, null, 0);
+
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final boolean writer = i == 0;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 200; j++) {
+						if (writer) {
+							cache.put(URL, j % 2 == 0 ? data2 : data1, null, null, 0);
+						} else {
+							MadCreativeCache.CachedCreative creative = cache.get(URL);
+							if (creative == null || !(Arrays.equals(data1, creative.data) || Arrays.equals(data2, creative.data))) {
+								synchronized (failed) {
+									failed[0] = true;
+								}
+							}
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+
+		synchronized (failed) {
+			assertFalse("reader saw a missing or partial creative", failed[0]);
+		}
+	}
+
+	public void testResponseWithoutExpiryIsFreshForAFewMinutes() {
+		long now = System.currentTimeMillis();
+		long expires = MadCreativeCache.getExpiryTime(null, null);
+		assertTrue(expires > now);
+		assertTrue(expires <= System.currentTimeMillis() + 5 * 60 * 1000);
+		assertTrue(MadCreativeCache.getExpiryTime("public", null) > now);
+	}
+
+	public void testExplicitExpiryIsUsed() {
+		long now = System.currentTimeMillis();
+		assertEquals(0, MadCreativeCache.getExpiryTime("no-cache", null));
+		assertEquals(0, MadCreativeCache.getExpiryTime("private, no-store", "Thu, 01 Dec 2050 16:00:00 GMT"));
+		assertTrue(MadCreativeCache.getExpiryTime("max-age=0", null) <= System.currentTimeMillis());
+		assertTrue(MadCreativeCache.getExpiryTime("max-age=3600", null) >= now + 3600 * 1000);
+		assertEquals(0, MadCreativeCache.getExpiryTime(null, "0"));
+		assertEquals(784111777000L, MadCreativeCache.getExpiryTime(null, "Sun, 06 Nov 1994 08:49:37 GMT"));
+	}
+
+	private void assertRemovesCreativeWithLength(int length) throws IOException {
+		MadCreativeCache cache = new MadCreativeCache(directory);
+		cache.put(URL, createData(1024), null, null, 0);
+
+		RandomAccessFile file = new RandomAccessFile(new File(directory, getFileName()), "rw");
+		try {
+			file.seek(LENGTH_OFFSET);
+			file.writeInt(length);
+		} finally {
+			file.close();
+		}
+
+		assertNull(cache.get(URL));
+		assertFalse(new File(directory, getFileName()).exists());
+		assertEquals(0, cache.getSize());
+		assertNull(cache.get(URL));
+	}
+
+	private static String getFileName() {
+		return MadUtil.getMD5Hash(URL) + ".creative";
+	}
+
+	private static byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+/**
+ * Decodes the gifs in the corpus (gif/) and compares the frames with the gif reader of the JVM or
+ * with the expected composition of the animation.
+ */
+public class MadGifDecoderTest extends TestCase {
+
+	private static final int RED = 0xffff0000;
+	private static final int BLUE = 0xff0000ff;
+	private static final int GREEN = 0xff00ff00;
+	private static final int WHITE = 0xffffffff;
+
+	public void testStaticBannerMatchesReference() throws IOException {
+		assertMatchesReference("banner.gif");
+	}
+
+	public void testInterlacedBannerMatchesReference() throws IOException {
+		assertMatchesReference("interlaced.gif");
+	}
+
+	public void testAnimationIsComposed() throws IOException {
+		MadGifDecoder decoder = new MadGifDecoder(open("animated.gif"));
+		assertEquals(16, decoder.getWidth());
+		assertEquals(16, decoder.getHeight());
+
+		assertTrue(decoder.readFrame());
+		assertEquals(200, decoder.getFrameDelay());
+		assertPixel(decoder, 0, 0, RED);
+		assertPixel(decoder, 15, 15, RED);
+
+		// blue 4x4 at (4, 4), its transparent corner keeps the red of the first frame
+		assertTrue(decoder.readFrame());
+		assertEquals(300, decoder.getFrameDelay());
+		assertPixel(decoder, 4, 4, RED);
+		assertPixel(decoder, 5, 5, BLUE);
+		assertPixel(decoder, 7, 7, BLUE);
+		assertPixel(decoder, 8, 8, RED);
+
+		// the blue frame is disposed to the background, a green 2x2 frame without delay is drawn
+		assertTrue(decoder.readFrame());
+		assertEquals(100, decoder.getFrameDelay());
+		assertPixel(decoder, 5, 5, 0);
+		assertPixel(decoder, 1, 1, GREEN);
+
+		// the green frame is disposed to the previous canvas
+		assertTrue(decoder.readFrame());
+		assertPixel(decoder, 1, 1, RED);
+		assertPixel(decoder, 5, 5, 0);
+		assertPixel(decoder, 14, 14, WHITE);
+		assertPixel(decoder, 13, 13, RED);
+
+		assertFalse(decoder.readFrame());
+		assertEquals(4, decoder.getFrameCount());
+	}
+
+	public void testRestartReusesBuffers() throws IOException {
+		MadGifDecoder decoder = new MadGifDecoder(open("animated.gif"));
+		while (decoder.readFrame()) {
+		}
+		int[] canvas = decoder.getPixels();
+
+		decoder.start(open("animated.gif"));
+		assertEquals(0, decoder.getFrameCount());
+		assertTrue(decoder.readFrame());
+		assertSame(canvas, decoder.getPixels());
+		assertPixel(decoder, 5, 5, RED);
+	}
+
+	public void testTruncatedGifShowsReadPart() throws IOException {
+		MadGifDecoder decoder = new MadGifDecoder(open("truncated.gif"));
+		assertTrue(decoder.readFrame());
+		assertFalse(decoder.readFrame());
+
+		// the first rows were read completely and match the full banner
+		BufferedImage reference = ImageIO.read(getClass().getResource("gif/banner.gif"));
+		for (int x = 0; x < decoder.getWidth(); x++) {
+			assertPixel(decoder, x, 0, reference.getRGB(x, 0));
+		}
+	}
+
+	public void testAnimatedGifIsDetected() throws IOException {
+		assertTrue(MadGifDecoder.isAnimated(read("animated.gif")));
+		assertFalse(MadGifDecoder.isAnimated(read("banner.gif")));
+		assertFalse(MadGifDecoder.isAnimated(read("interlaced.gif")));
+		assertFalse(MadGifDecoder.isAnimated(read("truncated.gif")));
+		assertFalse(MadGifDecoder.isAnimated(read("not_a_gif.gif")));
+		assertFalse(MadGifDecoder.isAnimated(new byte[0]));
+	}
+
+	public void testHugeHeaderIsRejected() {
+		// 0xFFFF x 0xFFFF overflows an int
+		assertInvalid("huge_header.gif");
+	}
+
+	public void testHugeFrameIsRejected() {
+		assertInvalid("huge_frame.gif");
+	}
+
+	public void testOtherFormatIsRejected() {
+		assertInvalid("not_a_gif.gif");
+	}
+
+	private void assertMatchesReference(String name) throws IOException {
+		BufferedImage reference = ImageIO.read(getClass().getResource("gif/" + name));
+		MadGifDecoder decoder = new MadGifDecoder(open(name));
+		assertTrue(decoder.readFrame());
+		assertEquals(reference.getWidth(), decoder.getWidth());
+		assertEquals(reference.getHeight(), decoder.getHeight());
+		for (int y = 0; y < reference.getHeight(); y++) {
+			for (int x = 0; x < reference.getWidth(); x++) {
+				assertPixel(decoder, x, y, reference.getRGB(x, y));
+			}
+		}
+		assertFalse(decoder.readFrame());
+	}
+
+	private void assertInvalid(String name) {
+		try {
+			MadGifDecoder decoder = new MadGifDecoder(open(name));
+			while (decoder.readFrame()) {
+			}
+			fail("Decoded invalid gif " + name);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static void assertPixel(MadGifDecoder decoder, int x, int y, int expected) {
+		int actual = decoder.getPixels()[y * decoder.getWidth() + x];
+		assertEquals("pixel " + x + "," + y, Integer.toHexString(expected), Integer.toHexString(actual));
+	}
+
+	private byte[] read(String name) throws IOException {
+		return MadUtil.readStream(open(name), -1, Integer.MAX_VALUE);
+	}
+
+	private InputStream open(String name) {
+		return new BufferedInputStream(getClass().getResourceAsStream("gif/" + name));
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+/**
+ * Checks against a local stub server, that all requests share one pool of keep-alive
+ * connections, and compares the latency with a new client per request, as before the shared
+ * transport.
+ */
+public class MadHttpTransportTest extends TestCase {
+
+	private static final int REQUESTS = 50;
+	private static final int WARM_UP = 20;
+	private static final int THREADS = 8;
+
+	private StubAdServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		MadHttpTransport.shutdown();
+		server = new StubAdServer().enqueue(StubAdServer.respondJson("{\"click_url\":\"http://madvertise.de\"}"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		MadHttpTransport.shutdown();
+		server.stop();
+	}
+
+	public void testSequentialRequestsReuseOneConnection() throws Exception {
+		// warm up, so class loading and compilation are not measured
+		for (int i = 0; i < WARM_UP; i++) {
+			assertEquals(200, getWithNewClient());
+			assertEquals(200, get(MadHttpTransport.getHttpClient()));
+		}
+		int connections = server.getConnectionCount();
+		int requests = server.getRequestCount();
+
+		long sharedNanos = 0;
+		for (int i = 0; i < REQUESTS; i++) {
+			long start = System.nanoTime();
+			assertEquals(200, get(MadHttpTransport.getHttpClient()));
+			sharedNanos += System.nanoTime() - start;
+		}
+		assertEquals(requests + REQUESTS, server.getRequestCount());
+		// the connection of the warm up is still used
+		assertEquals(connections, server.getConnectionCount());
+
+		// the way it was before: a new client and connection for every request
+		connections = server.getConnectionCount();
+		long perRequestNanos = 0;
+		for (int i = 0; i < REQUESTS; i++) {
+			long start = System.nanoTime();
+			assertEquals(200, getWithNewClient());
+			perRequestNanos += System.nanoTime() - start;
+		}
+		assertEquals(connections + REQUESTS, server.getConnectionCount());
+
+		System.out.println("Request latency against a local server: shared transport " + sharedNanos / REQUESTS / 1000
+				+ " us, new client per request " + perRequestNanos / REQUESTS / 1000 + " us");
+	}
+
+	public void testConcurrentRequestsShareThePool() throws Exception {
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		final HttpClient[] clients = new HttpClient[THREADS];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final int index = t;
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						clients[index] = MadHttpTransport.getHttpClient();
+						for (int i = 0; i < REQUESTS; i++) {
+							assertEquals(200, get(clients[index]));
+						}
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+		for (int i = 0; i < threads.size(); i++) {
+			threads.get(i).start();
+		}
+		for (int i = 0; i < threads.size(); i++) {
+			threads.get(i).join(30000);
+		}
+
+		assertEquals(failures.toString(), 0, failures.size());
+		for (int t = 1; t < THREADS; t++) {
+			assertSame(clients[0], clients[t]);
+		}
+		assertEquals(THREADS * REQUESTS, server.getRequestCount());
+		// the pool never opens more connections to the ad server than allowed per route
+		assertTrue("connections: " + server.getConnectionCount(), server.getConnectionCount() <= 4);
+	}
+
+	public void testIdleConnectionsAreKeptUntilClosed() throws Exception {
+		assertEquals(200, get(MadHttpTransport.getHttpClient()));
+		MadHttpTransport.closeIdleConnections();
+		assertEquals(200, get(MadHttpTransport.getHttpClient()));
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	private int getWithNewClient() throws Exception {
+		DefaultHttpClient client = new DefaultHttpClient();
+		try {
+			return get(client);
+		} finally {
+			client.getConnectionManager().shutdown();
+		}
+	}
+
+	private int get(HttpClient client) throws Exception {
+		HttpResponse response = client.execute(new HttpGet(server.getUrl() + "/site/TestTokn"));
+		MadHttpTransport.releaseResponse(response);
+		return response.getStatusLine().getStatusCode();
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Hits the location service from many threads: every snapshot, that a reader sees, must be
+ * consistent and never older than a snapshot it saw before, and of all threads, that find a
+ * refresh due, only one may refresh.
+ */
+public class MadLocationServiceTest extends TestCase {
+
+	private static final int THREADS = 8;
+	private static final int UPDATES = 20000;
+	private static final int REFRESH_ROUNDS = 200;
+
+	private static final long REFRESH_MILLIS = MadUtil.SECONDS_TO_REFRESH_LOCATION * 1000L;
+
+	// far beyond the uptime of the test, so the first round is always due
+	private static final long FIRST_ROUND = 1000L * REFRESH_MILLIS;
+
+	public void testReadersSeeConsistentSnapshots() throws Exception {
+		// recent enough for the default maximum age and newer than any fix published before
+		final long baseTime = System.currentTimeMillis() - 60000;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger writersLeft = new AtomicInteger(THREADS / 2);
+		final List<Throwable> failures = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS / 2; t++) {
+			final int writer = t;
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = writer; i < UPDATES; i += THREADS / 2) {
+							MadLocationService.publish(newSnapshot(baseTime, i));
+						}
+					} catch (Throwable e) {
+						addFailure(failures, e);
+					} finally {
+						writersLeft.decrementAndGet();
+					}
+				}
+			});
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						start.await();
+						long lastTime = 0;
+						while (writersLeft.get() > 0) {
+							MadLocationService.Snapshot snapshot = MadLocationService.getSnapshot();
+							if (snapshot == null || snapshot.time < baseTime) continue;
+
+							int i = (int) (snapshot.time - baseTime);
+							assertEquals(Double.toString(i), snapshot.latitude);
+							assertEquals(Double.toString(-i), snapshot.longitude);
+							assertEquals(i % 100f, snapshot.accuracy, 0f);
+							assertEquals("writer" + i, snapshot.provider);
+							assertTrue("snapshot went back in time", snapshot.time >= lastTime);
+							lastTime = snapshot.time;
+						}
+					} catch (Throwable e) {
+						addFailure(failures, e);
+					}
+				}
+			});
+		}
+
+		runAll(threads, start);
+		assertEquals(failures.toString(), 0, failures.size());
+
+		// the newest fix wins, no matter which writer published it last
+		assertEquals(baseTime + UPDATES - 1, MadLocationService.getSnapshot().time);
+		assertFalse(MadLocationService.publish(newSnapshot(baseTime, 0)));
+	}
+
+	public void testOnlyOneThreadRefreshes() throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+		final AtomicInteger[] refreshes = new AtomicInteger[REFRESH_ROUNDS];
+		for (int round = 0; round < REFRESH_ROUNDS; round++) {
+			refreshes[round] = new AtomicInteger();
+		}
+		final List<Throwable> failures = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						for (int round = 0; round < REFRESH_ROUNDS; round++) {
+							long now = FIRST_ROUND + round * REFRESH_MILLIS;
+							barrier.await();
+							// all threads find the refresh due at the same time
+							if (MadLocationService.claimRefresh(now)) refreshes[round].incrementAndGet();
+							// and nobody before the next round
+							if (MadLocationService.claimRefresh(now + REFRESH_MILLIS - 1)) refreshes[round].incrementAndGet();
+						}
+					} catch (Throwable e) {
+						addFailure(failures, e);
+					}
+				}
+			});
+		}
+
+		runAll(threads, null);
+		assertEquals(failures.toString(), 0, failures.size());
+		for (int round = 0; round < REFRESH_ROUNDS; round++) {
+			assertEquals("refreshes in round " + round, 1, refreshes[round].get());
+		}
+	}
+
+	private static MadLocationService.Snapshot newSnapshot(long baseTime, int i) {
+		// every field is derived from the time, so a mix of two fixes is detected
+		return new MadLocationService.Snapshot(i, -i, i % 100, true, baseTime + i, "writer" + i, -1);
+	}
+
+	private static void runAll(List<Thread> threads, CountDownLatch start) throws InterruptedException {
+		for (int i = 0; i < threads.size(); i++) {
+			threads.get(i).start();
+		}
+		if (start != null) start.countDown();
+		for (int i = 0; i < threads.size(); i++) {
+			threads.get(i).join(30000);
+		}
+	}
+
+	private static void addFailure(List<Throwable> failures, Throwable e) {
+		synchronized (failures) {
+			failures.add(e);
+		}
+	}
+}
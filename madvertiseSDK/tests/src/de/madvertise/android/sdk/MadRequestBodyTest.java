@@ -0,0 +1,245 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips of the compact binary request and response format, and gzip and binary responses
+ * through a local stub server.
+ */
+public class MadRequestBodyTest extends TestCase {
+
+	private static final String UA = "Mozilla/5.0 (Linux; U; Android 2.1; de-de; Nexus One Build/ERD79) AppleWebKit/525.10+ "
+			+ "(KHTML, like Gecko) Version/3.0.4 Mobile Safari/523.12.2";
+
+	private MadRequestContext requestContext;
+
+	@Override
+	protected void setUp() throws Exception {
+		MadLocationService.Snapshot location = new MadLocationService.Snapshot(52.520008, 13.404954, 50, true,
+				System.currentTimeMillis(), "network", 3);
+		requestContext = new MadRequestContext("TestTokn", "0123456789abcdef", "10.0.0.1", UA, 480, 800, location);
+	}
+
+	public void testBinaryBodyHasTheParametersOfTheForm() throws IOException {
+		MadRequestBody form = createBody(false);
+		MadRequestBody binary = createBody(true);
+		assertFalse(form.isBinary());
+		assertTrue(binary.isBinary());
+
+		List<String> formParameters = new ArrayList<String>();
+		String[] pairs = form.toString().split("&");
+		for (int i = 0; i < pairs.length; i++) {
+			String[] pair = pairs[i].split("=", 2);
+			formParameters.add(URLDecoder.decode(pair[0], MadUtil.ENCODING));
+			formParameters.add(URLDecoder.decode(pair[1], MadUtil.ENCODING));
+		}
+
+		byte[] body = StubAdServer.readFully(binary.createEntity().getContent());
+		List<String> binaryParameters = readBinaryParameters(body);
+
+		assertEquals(formParameters, binaryParameters);
+		assertTrue(binaryParameters.contains("52.520"));
+		assertEquals(MadRequestBody.BINARY_CONTENT_TYPE, binary.createEntity().getContentType().getValue());
+
+		// only the platform of the user agent is sent
+		assertFalse(new String(body, MadUtil.ENCODING).contains("Mozilla"));
+		assertTrue(new String(body, MadUtil.ENCODING).contains("2.1; de-de; Nexus One Build/ERD79"));
+
+		long formLength = form.createEntity().getContentLength();
+		int gzipLength = StubAdServer.gzip(body).length;
+		System.out.println("Request body: url encoded " + formLength + " bytes, binary " + body.length + " bytes, binary and gzip "
+				+ gzipLength + " bytes");
+		assertTrue(body.length < formLength / 2);
+	}
+
+	public void testBinaryBodyKeepsUnknownNamesAndUserAgents() throws IOException {
+		String ua = "Opera/9.80 (Android; Linux; Opera Mobi/498; U; en) Presto/2.4.18 Version/10.00";
+		MadRequestContext otherContext = new MadRequestContext("TestTokn", "0123456789abcdef", "10.0.0.1", ua, 480, 800, null);
+		MadRequestBody binary = new MadRequestBody(otherContext, true).add("slots", "2").add("banner_type_0", "mma")
+				.add("deliver_only_text_1", "true").add("banner_type_01", "iab").add("banner_type_x", "mma").add("keywords", "sport");
+
+		List<String> parameters = readBinaryParameters(StubAdServer.readFully(binary.createEntity().getContent()));
+		assertEquals(ua, parameters.get(parameters.indexOf("ua") + 1));
+		String[] expected = new String[] { "slots", "2", "banner_type_0", "mma", "deliver_only_text_1", "true", "banner_type_01",
+				"iab", "banner_type_x", "mma", "keywords", "sport" };
+		assertEquals(Arrays.asList(expected), parameters.subList(parameters.size() - expected.length, parameters.size()));
+	}
+
+	public void testBinaryResponseRoundTrip() throws IOException {
+		List<MadAdParser.AdData> ads = new ArrayList<MadAdParser.AdData>();
+		ads.add(createAd(0, true));
+		ads.add(null);
+		ads.add(createAd(2, false));
+
+		List<MadAdParser.AdData> parsed = MadAdParser.parseBinary(new ByteArrayInputStream(writeBinaryResponse(ads)));
+		assertEquals(ads.size(), parsed.size());
+		assertNull(parsed.get(1));
+		for (int i = 0; i < ads.size(); i += 2) {
+			assertEquals(ads.get(i).clickURL, parsed.get(i).clickURL);
+			assertEquals(ads.get(i).bannerURL, parsed.get(i).bannerURL);
+			assertEquals(ads.get(i).text, parsed.get(i).text);
+			assertEquals(ads.get(i).hasBannerLink, parsed.get(i).hasBannerLink);
+		}
+	}
+
+	public void testInvalidBinaryResponsesFail() throws IOException {
+		List<MadAdParser.AdData> ads = new ArrayList<MadAdParser.AdData>();
+		ads.add(createAd(0, true));
+		byte[] response = writeBinaryResponse(ads);
+
+		byte[] truncated = new byte[response.length - 3];
+		System.arraycopy(response, 0, truncated, 0, truncated.length);
+		byte[] unknownVersion = response.clone();
+		unknownVersion[0] = 2;
+		byte[][] responses = new byte[][] { new byte[0], truncated, unknownVersion };
+		for (int i = 0; i < responses.length; i++) {
+			try {
+				MadAdParser.parseBinary(new ByteArrayInputStream(responses[i]));
+				fail("accepted invalid response " + i);
+			} catch (EOFException e) {
+				// expected
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid ad response"));
+			}
+		}
+	}
+
+	public void testGzipResponsesThroughStubServer() throws Exception {
+		List<MadAdParser.AdData> ads = new ArrayList<MadAdParser.AdData>();
+		ads.add(createAd(0, true));
+		byte[] binaryResponse = writeBinaryResponse(ads);
+		byte[] jsonResponse = ("{\"click_url\":\"" + ads.get(0).clickURL + "\",\"banner_url\":\"" + ads.get(0).bannerURL
+				+ "\",\"text\":\"" + ads.get(0).text + "\",\"has_banner\":true}").getBytes(MadUtil.ENCODING);
+
+		StubAdServer server = new StubAdServer();
+		MadUtil.setServerUrl(server.getUrl());
+		try {
+			// a binary request accepts a binary response, but the server may still answer with json
+			server.enqueue(StubAdServer.respond(200, MadRequestBody.BINARY_CONTENT_TYPE, binaryResponse, true));
+			server.enqueue(StubAdServer.respond(200, "application/json", jsonResponse, true));
+			server.enqueue(StubAdServer.respond(200, "application/json", jsonResponse, false));
+
+			for (int i = 0; i < 3; i++) {
+				List<MadAdParser.AdData> received = execute(createBody(i < 2));
+				assertNotNull("response " + i, received);
+				assertEquals(ads.get(0).clickURL, received.get(0).clickURL);
+				assertEquals(ads.get(0).text, received.get(0).text);
+
+				StubAdServer.Request request = server.getRequest(i);
+				assertEquals("gzip", request.acceptEncoding);
+				assertEquals(i < 2 ? MadRequestBody.BINARY_CONTENT_TYPE : MadRequestBody.FORM_CONTENT_TYPE, request.contentType);
+			}
+
+			System.out.println("Response: json " + jsonResponse.length + " bytes, gzip " + StubAdServer.gzip(jsonResponse).length
+					+ " bytes, binary " + binaryResponse.length + " bytes, binary and gzip " + StubAdServer.gzip(binaryResponse).length + " bytes");
+		} finally {
+			MadUtil.setServerUrl(null);
+			server.stop();
+		}
+	}
+
+	private MadRequestBody createBody(boolean binary) {
+		return new MadRequestBody(requestContext, binary).add("debug", "false").add("banner_type", "mma")
+				.add("deliver_only_text", "false");
+	}
+
+	// decodes a binary request, as the ad server does
+	private static List<String> readBinaryParameters(byte[] body) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+		assertEquals(MadRequestBody.BINARY_FORMAT_VERSION, input.readUnsignedByte());
+		List<String> parameters = new ArrayList<String>();
+		while (input.available() > 0) {
+			int tag = input.readUnsignedByte();
+			if (tag == MadRequestBody.NAME_TAG) {
+				parameters.add(input.readUTF());
+				parameters.add(input.readUTF());
+			} else if (tag == MadRequestBody.UA_TAG) {
+				parameters.add("ua");
+				parameters.add(MadUtil.UA_PREFIX + input.readUTF() + MadUtil.UA_SUFFIX);
+			} else {
+				String name = MadRequestBody.PARAMETER_NAMES[tag];
+				parameters.add(name.endsWith("_") ? name + input.readUnsignedByte() : name);
+				parameters.add(input.readUTF());
+			}
+		}
+		return parameters;
+	}
+
+	private static List<MadAdParser.AdData> execute(MadRequestBody body) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<List<MadAdParser.AdData>> result = new ArrayList<List<MadAdParser.AdData>>();
+		MadAdRequest.execute(MadAdRequest.createPostRequest("/site/TestTokn", body), false, 0, new MadAdRequest.Callback() {
+			public void onResponse(List<MadAdParser.AdData> ads) {
+				result.add(ads);
+				latch.countDown();
+			}
+		});
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		return result.get(0);
+	}
+
+	private static MadAdParser.AdData createAd(int index, boolean hasBanner) {
+		MadAdParser.AdData ad = new MadAdParser.AdData();
+		ad.clickURL = "http://ad.madvertise.de/click/8ad3f72b" + index + "?site=TestTokn";
+		ad.bannerURL = "http://ad.madvertise.de/banner/8ad3f72b" + index + ".gif";
+		ad.text = "Jetzt kostenlos testen \u2013 nur f\u00fcr kurze Zeit!";
+		ad.hasBannerLink = hasBanner;
+		return ad;
+	}
+
+	// see MadAdParser for the format, an unknown tag is added to every ad
+	private static byte[] writeBinaryResponse(List<MadAdParser.AdData> ads) throws IOException {
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(response);
+		output.writeByte(MadRequestBody.BINARY_FORMAT_VERSION);
+		output.writeShort(ads.size());
+		for (int i = 0; i < ads.size(); i++) {
+			MadAdParser.AdData ad = ads.get(i);
+			if (ad == null) {
+				output.writeByte(0);
+				continue;
+			}
+			output.writeByte(1);
+			writeField(output, 1, ad.clickURL);
+			writeField(output, 2, ad.bannerURL);
+			writeField(output, 99, "ignored");
+			writeField(output, 3, ad.text);
+			writeField(output, 4, Boolean.toString(ad.hasBannerLink));
+			output.writeByte(0);
+		}
+		return response.toByteArray();
+	}
+
+	private static void writeField(DataOutputStream output, int tag, String value) throws IOException {
+		output.writeByte(tag);
+		output.writeUTF(value);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.lang.management.ManagementFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import android.util.Log;
+
+/**
+ * Checks, that log statements are only printed, if their tag is enabled, that disabled log
+ * statements do no work, and measures the allocations, that the log statements of one refresh
+ * cost with eager string building.
+ */
+public class MadUtilLoggingTest extends TestCase {
+
+	private static final int REFRESHES = 20000;
+
+	private static final String URI = "http://ad.madvertise.de/site/TestTokn";
+	private static final Header[] HEADERS = new Header[] {
+			new BasicHeader("Content-Type", "application/x-www-form-urlencoded; charset=utf-8"),
+			new BasicHeader("Accept", "application/x-madvertise-binary"),
+			new BasicHeader("User-Agent", "Mozilla/5.0 (Linux; U; Android 2.1; de-de; Nexus One Build/ERD79)") };
+	private static final String BODY = "ua=Mozilla&ip=10.0.0.1&format=json&requester=android_sdk&version=2.0&banner_type=mma&deliver_only_text=false&lat=52.520&lng=13.404";
+	private static final String CLICK_URL = "http://ad.madvertise.de/click/1234";
+	private static final String BANNER_URL = "http://ad.madvertise.de/banner/1234.gif";
+	private static final String TEXT = "Text of the ad";
+
+	// keeps the eagerly built messages alive, so they are not optimized away
+	private static volatile Object sink;
+
+	public void testLoggingIsOffByDefault() {
+		assertFalse(MadUtil.PRINT_LOG);
+		int printedCount = Log.getPrintedCount();
+		for (int level = Log.VERBOSE; level <= Log.ASSERT; level++) {
+			assertFalse(MadUtil.isLoggable(level));
+		}
+		MadUtil.logMessage(null, Log.DEBUG, "Not printed");
+		assertEquals(printedCount, Log.getPrintedCount());
+	}
+
+	public void testDebugOutputIsEnabledByTag() {
+		assertTrue(MadUtil.LOG_ENABLED);
+		// like "adb shell setprop log.tag.MAD_LOG DEBUG", checked again by every statement
+		Log.setLoggable(MadUtil.LOG, Log.DEBUG);
+		try {
+			assertTrue(MadUtil.isLoggable(Log.DEBUG));
+			assertFalse(MadUtil.isLoggable(Log.VERBOSE));
+
+			int printedCount = Log.getPrintedCount();
+			MadUtil.logMessage(null, Log.DEBUG, "Printed");
+			MadUtil.logMessage(null, Log.DEBUG, "Printed: ", 1);
+			MadUtil.logMessage(null, Log.VERBOSE, "Not printed");
+			MadUtil.logMessage("OTHER_TAG", Log.DEBUG, "Not printed");
+			assertEquals(printedCount + 2, Log.getPrintedCount());
+		} finally {
+			Log.setLoggable(MadUtil.LOG, null);
+		}
+		assertFalse(MadUtil.isLoggable(Log.DEBUG));
+	}
+
+	public void testDisabledStatementsDoNotAllocate() {
+		// warm up, so class loading and compilation are not measured
+		for (int i = 0; i < REFRESHES; i++) {
+			logRefresh(i);
+			logRefreshEagerly(i);
+		}
+
+		long facadeBytes = measure(false);
+		long eagerBytes = measure(true);
+		System.out.println("Log allocations per refresh: facade " + facadeBytes / REFRESHES + " bytes, eager string building "
+				+ eagerBytes / REFRESHES + " bytes");
+
+		assertTrue("disabled log statements allocated " + facadeBytes + " bytes", facadeBytes < REFRESHES);
+		assertTrue(eagerBytes > facadeBytes);
+	}
+
+	private static long measure(boolean eager) {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long before = bean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < REFRESHES; i++) {
+			if (eager) {
+				logRefreshEagerly(i);
+			} else {
+				logRefresh(i);
+			}
+		}
+		return bean.getThreadAllocatedBytes(threadId) - before;
+	}
+
+	// the statements of one refresh, as written in the SDK
+	private static void logRefresh(int responseCode) {
+		if (MadUtil.isLoggable(Log.DEBUG)) {
+			MadUtil.logMessage(null, Log.DEBUG, "Uri : ", URI);
+			MadUtil.logMessage(null, Log.DEBUG, "All headers : ", MadUtil.getAllHeadersAsString(HEADERS));
+			MadUtil.logMessage(null, Log.DEBUG, "All request parameters :", BODY);
+		}
+		MadUtil.logMessage(null, Log.DEBUG, "Response Code => ", responseCode);
+		MadUtil.logMessage(null, Log.DEBUG, "Number of ads in response: ", 1);
+		MadUtil.logMessage(null, Log.DEBUG, "Creating ad");
+		if (MadUtil.isLoggable(Log.DEBUG)) MadUtil.logMessage(null, Log.DEBUG, "click_url => " + CLICK_URL + " banner_url => "
+				+ BANNER_URL + " text => " + TEXT + " has_banner => " + true);
+		MadUtil.logMessage(null, Log.DEBUG, "Using cached banner: ", BANNER_URL);
+		MadUtil.logMessage(null, Log.DEBUG, "Ad shown: ", true);
+	}
+
+	// the same statements with the messages built before the level is checked
+	private static void logRefreshEagerly(int responseCode) {
+		sink = "Uri : " + URI;
+		sink = "All headers : " + MadUtil.getAllHeadersAsString(HEADERS);
+		sink = "All request parameters :" + BODY;
+		sink = "Response Code => " + responseCode;
+		sink = "Number of ads in response: " + 1;
+		sink = "Creating ad";
+		sink = "click_url => " + CLICK_URL + " banner_url => " + BANNER_URL + " text => " + TEXT + " has_banner => " + true;
+		sink = "Using cached banner: " + BANNER_URL;
+		sink = "Ad shown: " + true;
+	}
+}
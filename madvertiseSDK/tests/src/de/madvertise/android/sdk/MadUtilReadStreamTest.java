@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the bulk reads of banner downloads and compares them with the byte by byte loop, they
+ * replaced, on banners of 5 KB to 500 KB.
+ */
+public class MadUtilReadStreamTest extends TestCase {
+
+	private static final int[] BANNER_SIZES = new int[] { 5 * 1024, 50 * 1024, 500 * 1024 };
+	private static final int ROUNDS = 20;
+	// payload of a tcp segment
+	private static final int SEGMENT_SIZE = 1460;
+
+	public void testReadsStreamOfKnownLength() throws IOException {
+		byte[] banner = createBanner(50 * 1024);
+		assertTrue(Arrays.equals(banner, MadUtil.readStream(openStream(banner), banner.length, MadUtil.MAX_BANNER_SIZE)));
+	}
+
+	public void testReadsStreamOfUnknownLength() throws IOException {
+		byte[] banner = createBanner(50 * 1024);
+		assertTrue(Arrays.equals(banner, MadUtil.readStream(openStream(banner), -1, MadUtil.MAX_BANNER_SIZE)));
+		assertEquals(0, MadUtil.readStream(openStream(new byte[0]), -1, MadUtil.MAX_BANNER_SIZE).length);
+	}
+
+	public void testFailsOnTruncatedStream() {
+		byte[] banner = createBanner(5 * 1024);
+		try {
+			MadUtil.readStream(openStream(banner), banner.length + 1, MadUtil.MAX_BANNER_SIZE);
+			fail("truncated stream was accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testFailsOnOversizedStream() {
+		byte[] banner = createBanner(MadUtil.MAX_BANNER_SIZE + 1);
+		try {
+			// rejected by the length alone
+			MadUtil.readStream(new ByteArrayInputStream(new byte[0]), banner.length, MadUtil.MAX_BANNER_SIZE);
+			fail("oversized content length was accepted");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			MadUtil.readStream(openStream(banner), -1, MadUtil.MAX_BANNER_SIZE);
+			fail("oversized stream was accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testBenchmarkAgainstByteLoop() throws IOException {
+		// warm up, so class loading and compilation are not measured
+		for (int i = 0; i < ROUNDS; i++) {
+			for (int s = 0; s < BANNER_SIZES.length; s++) {
+				byte[] banner = createBanner(BANNER_SIZES[s]);
+				MadUtil.readStream(openStream(banner), banner.length, MadUtil.MAX_BANNER_SIZE);
+				readByteByByte(openStream(banner));
+			}
+		}
+
+		System.out.println("Banner download, time and allocations per banner: bulk reads / byte loop");
+		for (int s = 0; s < BANNER_SIZES.length; s++) {
+			byte[] banner = createBanner(BANNER_SIZES[s]);
+			long[] bulk = measure(banner, true);
+			long[] loop = measure(banner, false);
+			System.out.println(banner.length / 1024 + " KB: " + bulk[0] / 1000 + " us / " + loop[0] / 1000 + " us, " + bulk[1]
+					+ " bytes / " + loop[1] + " bytes");
+
+			// a single array of the content length instead of a growing buffer and a copy
+			assertTrue("bulk reads allocated " + bulk[1] + " bytes", bulk[1] < banner.length + 4096);
+			assertTrue(loop[1] > 2 * banner.length);
+		}
+	}
+
+	/**
+	 * @return nanoseconds and allocated bytes per banner
+	 */
+	private static long[] measure(byte[] banner, boolean bulk) throws IOException {
+		InputStream[] streams = new InputStream[ROUNDS];
+		for (int i = 0; i < ROUNDS; i++) {
+			streams[i] = openStream(banner);
+		}
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = bean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			byte[] result = bulk ? MadUtil.readStream(streams[i], banner.length, MadUtil.MAX_BANNER_SIZE) : readByteByByte(streams[i]);
+			assertEquals(banner.length, result.length);
+		}
+		long nanos = System.nanoTime() - start;
+		long bytes = bean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		return new long[] { nanos / ROUNDS, bytes / ROUNDS };
+	}
+
+	// the download loop before the bulk reads
+	private static byte[] readByteByByte(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		int input = inputStream.read();
+		while (input != -1) {
+			byteArrayOutputStream.write(input);
+			input = inputStream.read();
+		}
+		return byteArrayOutputStream.toByteArray();
+	}
+
+	/**
+	 * Opens a stream, that delivers the banner in tcp segments through a buffer, like the content
+	 * stream of a http response
+	 */
+	private static InputStream openStream(byte[] banner) {
+		return new BufferedInputStream(new ByteArrayInputStream(banner) {
+			@Override
+			public synchronized int read(byte[] buffer, int offset, int length) {
+				return super.read(buffer, offset, Math.min(length, SEGMENT_SIZE));
+			}
+		}, MadUtil.STREAM_BUFFER_SIZE);
+	}
+
+	private static byte[] createBanner(int size) {
+		byte[] banner = new byte[size];
+		new Random(size).nextBytes(banner);
+		return banner;
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2011 madvertise Mobile Advertising GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.madvertise.android.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local ad server for the JVM tests. Every request is answered by the next queued
+ * {@link Responder}, the last one answers all following requests. The server records the
+ * requests and the client connections, they arrived on.
+ */
+class StubAdServer {
+
+	static {
+		// headers and body are written separately, with Nagle's algorithm every response on a
+		// reused connection would wait for the delayed ack of the client
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/**
+	 * Answers a single request
+	 */
+	interface Responder {
+		void respond(HttpExchange exchange, Request request) throws IOException;
+	}
+
+	/**
+	 * A recorded request
+	 */
+	static class Request {
+		protected final String path;
+		protected final String contentType;
+		protected final String acceptEncoding;
+		protected final byte[] body;
+		protected final int clientPort;
+
+		private Request(HttpExchange exchange, byte[] body) {
+			path = exchange.getRequestURI().getPath();
+			contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			this.body = body;
+			clientPort = exchange.getRemoteAddress().getPort();
+		}
+
+		protected String getBodyAsString() {
+			try {
+				return new String(body, MadUtil.ENCODING);
+			} catch (IOException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final List<Responder> responders = new ArrayList<Responder>();
+	private final List<Request> requests = new ArrayList<Request>();
+	private final Set<Integer> clientPorts = new HashSet<Integer>();
+
+	StubAdServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				Request request = new Request(exchange, readFully(exchange.getRequestBody()));
+				Responder responder;
+				synchronized (StubAdServer.this) {
+					requests.add(request);
+					clientPorts.add(request.clientPort);
+					responder = responders.size() > 1 ? responders.remove(0) : responders.get(0);
+				}
+				try {
+					responder.respond(exchange, request);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return base url of the server, see {@link MadUtil#setServerUrl(String)}
+	 */
+	String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	synchronized StubAdServer enqueue(Responder responder) {
+		responders.add(responder);
+		return this;
+	}
+
+	synchronized int getRequestCount() {
+		return requests.size();
+	}
+
+	synchronized Request getRequest(int index) {
+		return requests.get(index);
+	}
+
+	/**
+	 * @return number of client connections, the requests arrived on
+	 */
+	synchronized int getConnectionCount() {
+		return clientPorts.size();
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Answers with a status, a content type and a body, optionally gzip encoded
+	 */
+	static Responder respond(final int status, final String contentType, final byte[] body, final boolean gzip) {
+		return new Responder() {
+			public void respond(HttpExchange exchange, Request request) throws IOException {
+				byte[] content = gzip ? gzip(body) : body;
+				if (contentType != null) exchange.getResponseHeaders().set("Content-Type", contentType);
+				if (gzip) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				exchange.sendResponseHeaders(status, content.length > 0 ? content.length : -1);
+				OutputStream output = exchange.getResponseBody();
+				output.write(content);
+				output.close();
+			}
+		};
+	}
+
+	/**
+	 * Answers with a json body
+	 */
+	static Responder respondJson(String json) {
+		try {
+			return respond(200, "application/json; charset=utf-8", json.getBytes(MadUtil.ENCODING), false);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends nothing for the given time, then drops the connection
+	 */
+	static Responder stall(final long millis) {
+		return new Responder() {
+			public void respond(HttpExchange exchange, Request request) throws IOException {
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	static byte[] readFully(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int len;
+		while ((len = inputStream.read(buffer)) >= 0) {
+			output.write(buffer, 0, len);
+		}
+		inputStream.close();
+		return output.toByteArray();
+	}
+
+	static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		GZIPOutputStream gzipOutput = new GZIPOutputStream(output);
+		gzipOutput.write(data);
+		gzipOutput.close();
+		return output.toByteArray();
+	}
+}